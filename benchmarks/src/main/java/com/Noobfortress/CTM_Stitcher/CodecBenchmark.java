@@ -0,0 +1,89 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks decoding textures through {@link Main#loadImage(File)} & encoding stitched textures, both through
+ * {@link Main#writeImage(BufferedImage, File)} and the streaming png writer, against doing either through ImageIO
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class CodecBenchmark {
+
+    @Param({"16", "32", "64", "128", "256", "512"})
+    public int size;
+
+    @Param({"1", "8", "32", "128"})
+    public int frames;
+
+    private File dir, input, output;
+    private BufferedImage regular, stitched;
+    private final PngWriter.Settings settings = PngWriter.Settings.DEFAULT;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("ctm-bench").toFile();
+        input = new File(dir, "texture.png");
+        output = new File(dir, "texture-3x3.png");
+
+        regular = Textures.create(size, size * frames, 1);
+        stitched = Main.stitch(regular, null);
+
+        if (!Main.writeImage(regular, input)) throw new IOException("Couldn't write " + input);
+    }
+
+    @TearDown
+    public void tearDown() {
+        input.delete();
+        output.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        StitchBenchmark.consume(Main.loadImage(input), blackhole);
+    }
+
+    @Benchmark
+    public void decodeImageIO(Blackhole blackhole) throws IOException {
+        StitchBenchmark.consume(ImageAccess.normalize(ImageIO.read(input)), blackhole);
+    }
+
+    @Benchmark
+    public boolean encode() {
+        return Main.writeImage(stitched, output);
+    }
+
+    @Benchmark
+    public boolean encodeImageIO() throws IOException {
+        return ImageIO.write(stitched, "png", output);
+    }
+
+    @Benchmark
+    public boolean stitchAndStream() {
+        return Main.streamImage(regular, null, output, settings, Preview.DEFAULT);
+    }
+}
@@ -0,0 +1,95 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks compositing against plain stitching, and the vector pixel operations against the scalar ones.
+ * Forks get the vector module, so {@link PixelOps} picks the vector version if the cpu supports it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class CompositeBenchmark {
+
+    @Param({"16", "64", "256"})
+    public int size;
+
+    private BufferedImage regular, ctm;
+    private CopyPlan plan;
+    private Compositor tint, overlay;
+    private int[] dst, src;
+
+    @Setup
+    public void setup() {
+        regular = Textures.create(size, size, 1);
+        ctm = Textures.create(size * 2, size * 2, 2);
+        plan = Preview.DEFAULT.getPlan(regular, ctm);
+
+        BufferedImage overlayRegular = Textures.create(size, size, 3);
+        BufferedImage overlayCtm = Textures.create(size * 2, size * 2, 4);
+        tint = new Composite(0x7FB238, Composite.Blend.OVER, null, null).load(plan, 1);
+        overlay = new Compositor(new Composite(0x7FB238, Composite.Blend.OVER, null, null), plan,
+                                 overlayRegular, overlayCtm);
+
+        dst = ImageAccess.getPixels(Textures.create(size * 3, size * 3, 5));
+        src = ImageAccess.getPixels(Textures.create(size * 3, size * 3, 6));
+        for (int i = 0; i < src.length; i += 3)
+            src[i] &= 0x7FFFFFFF; //Partly transparent pixels, so blending has something to mix
+    }
+
+    @Benchmark
+    public void plain(Blackhole blackhole) {
+        StitchBenchmark.consume(Main.stitch(regular, ctm, 1, plan), blackhole);
+    }
+
+    @Benchmark
+    public void tinted(Blackhole blackhole) {
+        StitchBenchmark.consume(Main.stitch(regular, ctm, 1, plan, tint), blackhole);
+    }
+
+    @Benchmark
+    public void overlaid(Blackhole blackhole) {
+        StitchBenchmark.consume(Main.stitch(regular, ctm, 1, plan, overlay), blackhole);
+    }
+
+    @Benchmark
+    public int[] over() {
+        PixelOps.over(dst, 0, src, 0, dst.length);
+        return dst;
+    }
+
+    @Benchmark
+    public int[] overScalar() {
+        PixelOps.overScalar(dst, 0, src, 0, dst.length);
+        return dst;
+    }
+
+    @Benchmark
+    public int[] multiply() {
+        PixelOps.multiply(dst, 0, dst.length, 0xFFFFFF);
+        return dst;
+    }
+
+    @Benchmark
+    public int[] multiplyScalar() {
+        PixelOps.multiplyScalar(dst, 0, dst.length, 0xFFFFFF);
+        return dst;
+    }
+}
@@ -0,0 +1,77 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import com.Noobfortress.CTM_Stitcher.Main.TexturePart;
+
+import java.awt.image.BufferedImage;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+
+/**
+ * A deliberately plain stitcher of full 3x3 previews, straight from the {@link TexturePart} arrangement & the
+ * standard 47-tile ctm template, without copy plans, kernels or buffer pools. {@link ScaleHarness} checks every
+ * stitch mode against it
+ */
+final class ReferenceStitcher {
+
+    private ReferenceStitcher() {}
+
+    /**
+     * @param regular The regular texture
+     * @param ctm The ctm texture, or null if none is used
+     * @param frames The amount of frames stacked in both textures
+     * @return The 3x3 preview of every frame, stacked like the textures
+     */
+    static BufferedImage stitch(BufferedImage regular, BufferedImage ctm, int frames) {
+        int tileSize = regular.getWidth(), partSize = tileSize / 2, frameSize = tileSize * 3;
+        BufferedImage out = new BufferedImage(frameSize, frameSize * frames, TYPE_INT_ARGB);
+        int[] part = new int[partSize * partSize];
+
+        for (int frame = 0; frame < frames; frame++) {
+            for (int y = 0; y < 6; y++) {
+                for (int x = 0; x < 6; x++) {
+                    //Without ctm every block is the whole regular texture, which is the same quarters in turn
+                    BufferedImage src = regular;
+                    int srcX = (x & 1) * partSize, srcY = frame * tileSize + (y & 1) * partSize;
+
+                    if (ctm != null) {
+                        TexturePart texturePart = TexturePart.getPartForCoords(x, y);
+                        src = texturePart.isCtm() ? ctm : regular;
+                        srcX = texturePart.getSourceX(partSize);
+                        srcY = frame * src.getWidth() + texturePart.getSourceY(partSize);
+                    }
+
+                    src.getRGB(srcX, srcY, partSize, partSize, part, 0, partSize);
+                    out.setRGB(x * partSize, frame * frameSize + y * partSize, partSize, partSize, part, 0, partSize);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @param regular The regular texture
+     * @param ctm The ctm texture, a sheet of 12x4 tiles for every frame, or null if none is used
+     * @param frames The amount of frames stacked in both textures
+     * @return The 3x3 preview of every frame using the 47-tile ctm method, stacked like the textures
+     */
+    static BufferedImage stitchFull(BufferedImage regular, BufferedImage ctm, int frames) {
+        if (ctm == null) return stitch(regular, null, frames);
+
+        int tileSize = regular.getWidth(), frameSize = tileSize * 3, sheetHeight = ctm.getHeight() / frames;
+        BufferedImage out = new BufferedImage(frameSize, frameSize * frames, TYPE_INT_ARGB);
+        int[] tile = new int[tileSize * tileSize];
+
+        for (int frame = 0; frame < frames; frame++) {
+            for (int y = 0; y < 3; y++) {
+                for (int x = 0; x < 3; x++) {
+                    //In a full 3x3 every block is connected on all sides facing the grid, which the template has
+                    //as the 3x3 of tiles from tile 13 on: its 2nd to 4th column of its 2nd to 4th row
+                    ctm.getRGB((x + 1) * tileSize, frame * sheetHeight + (y + 1) * tileSize, tileSize, tileSize,
+                               tile, 0, tileSize);
+                    out.setRGB(x * tileSize, frame * frameSize + y * tileSize, tileSize, tileSize, tile, 0, tileSize);
+                }
+            }
+        }
+        return out;
+    }
+}
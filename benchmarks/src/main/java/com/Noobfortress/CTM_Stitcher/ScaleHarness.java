@@ -0,0 +1,486 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Generates a {@link SyntheticPack} & stitches it in every batch mode with a growing amount of threads, recording the
+ * wall time, throughput & peak heap of each. The "ctm" mode streams a second pack, made for the 47-tile method.
+ * The first run of every mode & thread count is checked pixel for pixel against {@link ReferenceStitcher},
+ * and broken textures have to fail instead of being written.
+ * Results can be compared against those of an earlier run, to catch changes which made stitching slower.
+ * Exits with 1 if any output was wrong or slower than the baseline allows, and with 2 if the options are invalid
+ */
+final class ScaleHarness {
+
+    private static final List<String> MODES = Arrays.asList("whole", "stream", "incremental", "pipeline", "atlas",
+                                                            "ctm");
+
+    /**
+     * The widest textures of the pack the "ctm" mode stitches, whose ctm sheets are 12 textures wide
+     */
+    private static final int MAX_SHEET_TILE_SIZE = 128;
+
+    private int count = 100, minSize = 16, maxSize = 1024, runs = 3;
+    private int[] frameCounts = {1, 2, 4, 8}, threadCounts = getDefaultThreads();
+    private double malformed = 0.1, tolerance = 0.15;
+    private long seed = 42;
+    private List<String> modes = MODES;
+    private File out, baseline;
+    private boolean keep;
+
+    private ScaleHarness() {}
+
+    public static void main(String[] args) {
+        ScaleHarness harness = new ScaleHarness();
+        try {
+            harness.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Options: -count <textures> -sizes <min,max> -frames <counts> -malformed <0 to 1>");
+            System.out.println("         -threads <counts> -runs <runs> -modes <" + String.join(",", MODES) + ">");
+            System.out.println("         -seed <seed> -keep -out <file.json>");
+            System.out.println("         -baseline <file.json> -tolerance <0 to 1>");
+            System.exit(2);
+        }
+
+        try {
+            System.exit(harness.run() ? 0 : 1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return 1, 2, 4 & so on up to the amount of cores, which is always included
+     */
+    private static int[] getDefaultThreads() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threads = new ArrayList<>();
+        for (int t = 1; t < cores; t *= 2)
+            threads.add(t);
+        threads.add(cores);
+        return threads.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException If an option is unknown or has an invalid value
+     */
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("-keep")) {
+                keep = true;
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+            String value = args[++i];
+
+            try {
+                switch (option) {
+                    case "-count": count = Integer.parseInt(value); break;
+                    case "-sizes":
+                        int[] sizes = parseInts(value);
+                        if (sizes.length != 2) throw new IllegalArgumentException("Sizes have to be min,max");
+                        minSize = sizes[0];
+                        maxSize = sizes[1];
+                        break;
+                    case "-frames": frameCounts = parseInts(value); break;
+                    case "-malformed": malformed = Double.parseDouble(value); break;
+                    case "-threads": threadCounts = parseInts(value); break;
+                    case "-runs": runs = Integer.parseInt(value); break;
+                    case "-modes": modes = Arrays.asList(value.split(",")); break;
+                    case "-seed": seed = Long.parseLong(value); break;
+                    case "-out": out = new File(value); break;
+                    case "-baseline": baseline = new File(value); break;
+                    case "-tolerance": tolerance = Double.parseDouble(value); break;
+                    default: throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+            }
+        }
+
+        if (count <= 0 || runs <= 0) throw new IllegalArgumentException("Count & runs have to be positive");
+        if (minSize < 2 || Main.notPowerOfTwo(minSize) || Main.notPowerOfTwo(maxSize) || maxSize < minSize)
+            throw new IllegalArgumentException("Sizes have to be powers of 2 from 2 up, got: " + minSize + ","
+                                               + maxSize);
+        for (int frames : frameCounts) {
+            //Textures are only stitched if their height is a power of 2, so any other count can't be animated
+            if (Main.notPowerOfTwo(frames))
+                throw new IllegalArgumentException("Frame counts have to be powers of 2, got: " + frames);
+        }
+        for (int threads : threadCounts) {
+            if (threads <= 0) throw new IllegalArgumentException("Thread counts have to be positive");
+        }
+        if (malformed < 0 || malformed > 1 || tolerance < 0 || tolerance > 1)
+            throw new IllegalArgumentException("The malformed share & tolerance have to be from 0 to 1");
+        for (String mode : modes) {
+            if (!MODES.contains(mode)) throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    private static int[] parseInts(String value) {
+        return Arrays.stream(value.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+    }
+
+    /**
+     * Generates the pack & runs every mode with every amount of threads
+     *
+     * @return Whether every output was right & no result was slower than the baseline allows
+     */
+    private boolean run() throws IOException {
+        Path dir = Files.createTempDirectory("ctm-scale");
+        try {
+            SyntheticPack pack = null, sheetPack = null;
+            if (modes.stream().anyMatch(mode -> !mode.equals("ctm")))
+                pack = generate(dir.resolve("pack").toFile(), minSize, maxSize, Preview.DEFAULT);
+            if (modes.contains("ctm")) {
+                int max = Math.min(maxSize, MAX_SHEET_TILE_SIZE);
+                sheetPack = generate(dir.resolve("pack-ctm").toFile(), Math.min(minSize, max), max,
+                                     new Preview(CtmLayouts.FULL, Grid.DEFAULT));
+            }
+
+            System.out.printf("%-12s %7s %10s %11s %8s %9s  %s\n",
+                              "mode", "threads", "wall ms", "textures/s", "speedup", "heap MB", "output");
+            List<Map<String, Object>> results = new ArrayList<>();
+            boolean correct = true;
+
+            for (String mode : modes) {
+                double base = 0;
+                for (int threads : threadCounts) {
+                    File outputDir = dir.resolve(mode + "-" + threads).toFile();
+                    Map<String, Object> result = run(mode.equals("ctm") ? sheetPack : pack, mode, threads, outputDir);
+                    double throughput = (Double) result.get("texturesPerSecond");
+                    if (base == 0) base = throughput;
+                    result.put("speedup", throughput / base);
+
+                    @SuppressWarnings("unchecked")
+                    List<String> problems = (List<String>) result.get("problems");
+                    correct &= problems.isEmpty();
+
+                    System.out.printf("%-12s %7d %10.1f %11.1f %7.2fx %9.1f  %s\n", mode, threads,
+                                      result.get("wallMs"), throughput, result.get("speedup"),
+                                      result.get("peakHeapMB"), problems.isEmpty() ? "ok" : problems.size() + " wrong");
+                    for (String problem : problems)
+                        System.out.println("    " + problem);
+                    results.add(result);
+                }
+            }
+
+            boolean fastEnough = baseline == null || compare(results);
+            if (out != null) write(results);
+            return correct && fastEnough;
+        } finally {
+            if (keep) System.out.println("Kept the pack & outputs in " + dir);
+            else delete(dir);
+        }
+    }
+
+    private SyntheticPack generate(File root, int minSize, int maxSize, Preview preview) throws IOException {
+        long start = System.nanoTime();
+        SyntheticPack pack = SyntheticPack.generate(root, count, minSize, maxSize, frameCounts, malformed, seed,
+                                                    preview);
+        System.out.printf("Generated %d texture(s) for %s, %d of them broken, in %.1fs: %s\n", count, preview,
+                          count - pack.getValidCount(), (System.nanoTime() - start) / 1e9, pack.root);
+        return pack;
+    }
+
+    /**
+     * Stitches the pack a few times in one mode, with the textures written to the given directory
+     *
+     * @return The result as json: the median wall time & its throughput, the peak heap & the problems found
+     */
+    private Map<String, Object> run(SyntheticPack pack, String mode, int threads, File outputDir) throws IOException {
+        PngWriter.Settings pngSettings = null;
+        if (mode.equals("stream") || mode.equals("pipeline") || mode.equals("ctm"))
+            pngSettings = PngWriter.Settings.DEFAULT;
+        else if (mode.equals("incremental"))
+            pngSettings = new PngWriter.Settings(Deflater.DEFAULT_COMPRESSION, PngWriter.Filter.ADAPTIVE, true);
+
+        Pipeline pipeline = mode.equals("pipeline")
+                ? new Pipeline(threads, Math.max(threads / 2, 1), threads, 0)
+                : null;
+        BatchStitcher stitcher = new BatchStitcher(pack.root, outputDir, pngSettings, null, pack.preview, null,
+                                                   pipeline, null, threads);
+
+        long[] nanos = new long[runs];
+        long peakHeap = 0;
+        int stitched = 0;
+        List<String> problems = new ArrayList<>();
+
+        try {
+            //Incremental runs are measured against the outputs of an earlier run, whose frames they copy
+            if (mode.equals("incremental")) stitch(stitcher, mode, outputDir);
+
+            for (int r = 0; r < runs; r++) {
+                if (!mode.equals("incremental")) delete(outputDir.toPath());
+                long heap = resetPeakHeap();
+
+                long start = System.nanoTime();
+                stitched = stitch(stitcher, mode, outputDir);
+                nanos[r] = System.nanoTime() - start;
+
+                peakHeap = Math.max(peakHeap, getPeakHeap() - heap);
+                if (r == 0) problems = mode.equals("atlas") ? verifyAtlas(pack, outputDir) : verify(pack, outputDir);
+                if (r == 0 && pipeline != null) problems.addAll(compareToSequential(pack, outputDir, pngSettings));
+            }
+        } finally {
+            stitcher.shutdown();
+        }
+
+        if (stitched != pack.getValidCount())
+            problems.add("Stitched " + stitched + " texture(s), but " + pack.getValidCount() + " are valid");
+
+        Arrays.sort(nanos);
+        double seconds = nanos[runs / 2] / 1e9;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("mode", mode);
+        result.put("threads", (long) threads);
+        result.put("runs", (long) runs);
+        result.put("valid", (long) pack.getValidCount());
+        result.put("wallMs", seconds * 1000);
+        result.put("texturesPerSecond", stitched / Math.max(seconds, 1e-9));
+        result.put("peakHeapMB", Math.max(peakHeap, 0) / (1024.0 * 1024));
+        result.put("problems", problems);
+        return result;
+    }
+
+    /**
+     * Runs the stitcher with its output silenced, which would otherwise be a line per texture
+     *
+     * @return The amount of textures which were stitched
+     */
+    private static int stitch(BatchStitcher stitcher, String mode, File outputDir) {
+        PrintStream stdout = System.out, stderr = System.err;
+        PrintStream silent = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(silent);
+        System.setErr(silent);
+        try {
+            if (!mode.equals("atlas")) return stitcher.stitchAll(stitcher.findJobs());
+
+            File index = new File(outputDir, "atlas.json");
+            Files.createDirectories(outputDir.toPath());
+            if (!stitcher.stitchAtlas(new Atlas(index, Atlas.DEFAULT_SIZE, null))) return 0;
+
+            Object root = Json.parse(new String(Files.readAllBytes(index.toPath()), StandardCharsets.UTF_8));
+            return ((Map<?, ?>) ((Map<?, ?>) root).get("textures")).size();
+        } catch (IOException e) {
+            e.printStackTrace(stderr);
+            return 0;
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+    }
+
+    /**
+     * Checks every stitched texture against the reference, and that no broken texture was written
+     *
+     * @return A description of every texture which was wrong
+     */
+    private static List<String> verify(SyntheticPack pack, File outputDir) throws IOException {
+        List<String> problems = new ArrayList<>();
+
+        for (SyntheticPack.Texture texture : pack.textures) {
+            File output = pack.getOutput(texture, outputDir);
+            if (texture.defect != null) {
+                if (output.exists()) problems.add(texture.path + " was written, but is broken: " + texture.defect);
+                continue;
+            }
+
+            BufferedImage img = output.isFile() ? ImageIO.read(output) : null;
+            if (img == null) problems.add(texture.path + " wasn't written");
+            else if (!SyntheticPack.hash(img).equals(texture.pixels))
+                problems.add(texture.path + " doesn't match the reference");
+        }
+        return problems;
+    }
+
+    /**
+     * Stitches the pack again on a single thread without a pipeline, into a new directory next to the pipelined
+     * outputs, and checks that both wrote the same bytes for every texture
+     *
+     * @param outputDir The directory a pipelined run wrote to, starting from an empty directory
+     * @return A description of every texture whose outputs differ
+     */
+    private static List<String> compareToSequential(SyntheticPack pack, File outputDir,
+                                                    PngWriter.Settings pngSettings) throws IOException {
+        File sequentialDir = new File(outputDir.getPath() + "-sequential");
+        delete(sequentialDir.toPath());
+        BatchStitcher sequential = new BatchStitcher(pack.root, sequentialDir, pngSettings, null, pack.preview,
+                                                     null, null, null, 1);
+        try {
+            stitch(sequential, "stream", sequentialDir);
+        } finally {
+            sequential.shutdown();
+        }
+
+        List<String> problems = new ArrayList<>();
+        for (SyntheticPack.Texture texture : pack.textures) {
+            if (texture.defect != null) continue;
+
+            File pipelined = pack.getOutput(texture, outputDir), expected = pack.getOutput(texture, sequentialDir);
+            if (pipelined.isFile() && expected.isFile()
+                    && Files.mismatch(pipelined.toPath(), expected.toPath()) != -1)
+                problems.add(texture.path + " isn't the same as when stitched without a pipeline");
+        }
+        delete(sequentialDir.toPath());
+        return problems;
+    }
+
+    /**
+     * Like {@link #verify}, but for the textures in the sheets of an atlas, as given by its index
+     */
+    private static List<String> verifyAtlas(SyntheticPack pack, File outputDir) throws IOException {
+        List<String> problems = new ArrayList<>();
+        File index = new File(outputDir, "atlas.json");
+        if (!index.isFile()) {
+            problems.add("The atlas wasn't written");
+            return problems;
+        }
+
+        Map<?, ?> root = (Map<?, ?>) Json.parse(new String(Files.readAllBytes(index.toPath()), StandardCharsets.UTF_8));
+        List<?> sheets = (List<?>) root.get("sheets");
+        Map<?, ?> textures = (Map<?, ?>) root.get("textures");
+        Map<Long, BufferedImage> images = new HashMap<>();
+
+        for (SyntheticPack.Texture texture : pack.textures) {
+            Map<?, ?> entry = (Map<?, ?>) textures.get(texture.path);
+            if (texture.defect != null) {
+                if (entry != null) problems.add(texture.path + " was packed, but is broken: " + texture.defect);
+                continue;
+            }
+            if (entry == null) {
+                problems.add(texture.path + " wasn't packed");
+                continue;
+            }
+
+            long sheet = (Long) entry.get("sheet");
+            BufferedImage img = images.get(sheet);
+            if (img == null) {
+                String file = (String) ((Map<?, ?>) sheets.get((int) sheet)).get("file");
+                img = ImageIO.read(new File(outputDir, file));
+                images.put(sheet, img);
+            }
+
+            BufferedImage packed = img.getSubimage(((Long) entry.get("x")).intValue(),
+                                                   ((Long) entry.get("y")).intValue(),
+                                                   ((Long) entry.get("width")).intValue(),
+                                                   ((Long) entry.get("height")).intValue());
+            if (!SyntheticPack.hash(packed).equals(texture.pixels))
+                problems.add(texture.path + " doesn't match the reference");
+        }
+        return problems;
+    }
+
+    /**
+     * Collects garbage & starts measuring the peak heap use over again. Buffer pools of earlier runs' threads
+     * survive this, so peaks are measured from what's left instead of from 0
+     *
+     * @return The heap in use after collecting garbage, in bytes
+     */
+    private static long resetPeakHeap() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) continue;
+
+            pool.resetPeakUsage();
+            used += pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    /**
+     * @return The heap used at most since the last reset, in bytes. The peaks of the heap's pools are added up,
+     *         even if they weren't reached at the same time, so this errs on the high side
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    /**
+     * Compares the throughput of every result to the one with the same mode & threads in the baseline
+     *
+     * @return Whether no result was slower than the tolerance allows
+     */
+    private boolean compare(List<Map<String, Object>> results) throws IOException {
+        Object root = Json.parse(new String(Files.readAllBytes(baseline.toPath()), StandardCharsets.UTF_8));
+        Map<String, Double> before = new HashMap<>();
+        for (Object result : (List<?>) ((Map<?, ?>) root).get("results")) {
+            Map<?, ?> json = (Map<?, ?>) result;
+            before.put(json.get("mode") + "-" + json.get("threads"),
+                       ((Number) json.get("texturesPerSecond")).doubleValue());
+        }
+
+        boolean fastEnough = true;
+        System.out.printf("Compared to %s, allowing %.0f%% less throughput:\n", baseline, tolerance * 100);
+        for (Map<String, Object> result : results) {
+            Double old = before.get(result.get("mode") + "-" + result.get("threads"));
+            if (old == null) continue;
+
+            double now = (Double) result.get("texturesPerSecond"), change = now / old - 1;
+            boolean regressed = now < old * (1 - tolerance);
+            fastEnough &= !regressed;
+            System.out.printf("%-12s %7d %+9.1f%%%s\n", result.get("mode"), result.get("threads"), change * 100,
+                              regressed ? "  REGRESSION" : "");
+        }
+        return fastEnough;
+    }
+
+    private void write(List<Map<String, Object>> results) throws IOException {
+        Map<String, Object> options = new LinkedHashMap<>();
+        options.put("count", (long) count);
+        options.put("sizes", Arrays.asList((long) minSize, (long) maxSize));
+        options.put("frames", Arrays.stream(frameCounts).asLongStream().boxed().toList());
+        options.put("malformed", malformed);
+        options.put("seed", seed);
+        options.put("runs", (long) runs);
+
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("version", Main.VERSION);
+        root.put("cores", (long) Runtime.getRuntime().availableProcessors());
+        root.put("pack", options);
+        root.put("results", results);
+
+        File dir = out.getAbsoluteFile().getParentFile();
+        Files.createDirectories(dir.toPath());
+        Files.write(out.toPath(), (Json.write(root) + "\n").getBytes(StandardCharsets.UTF_8));
+        System.out.println("Results written to " + out);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the stitchImage overloads through {@link Main#stitch(BufferedImage, BufferedImage)}.
+ * A single frame picks the plain & ctm overloads, more frames pick the animated ones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g") //A 512x512 texture with 128 frames stitches to over a GB
+public class StitchBenchmark {
+
+    @Param({"16", "32", "64", "128", "256", "512"})
+    public int size;
+
+    @Param({"1", "8", "32", "128"})
+    public int frames;
+
+    private BufferedImage regular, ctm;
+
+    @Setup
+    public void setup() {
+        regular = Textures.create(size, size * frames, 1);
+        ctm = Textures.create(size * 2, size * 2 * frames, 2);
+    }
+
+    @Benchmark
+    public void plain(Blackhole blackhole) {
+        consume(Main.stitch(regular, null), blackhole);
+    }
+
+    @Benchmark
+    public void ctm(Blackhole blackhole) {
+        consume(Main.stitch(regular, ctm), blackhole);
+    }
+
+    /**
+     * Gives the stitched texture back to the buffer pool like batch runs do, so the next one can reuse its pixels
+     */
+    static void consume(BufferedImage img, Blackhole blackhole) {
+        blackhole.consume(img);
+        ImageAccess.release(img);
+    }
+}
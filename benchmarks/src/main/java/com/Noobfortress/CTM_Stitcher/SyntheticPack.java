@@ -0,0 +1,231 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A resource pack of generated textures for {@link ScaleHarness}. Every valid texture comes with the hash of its
+ * stitched pixels according to {@link ReferenceStitcher}, so outputs can be checked without keeping the textures in
+ * memory. A share of the textures is broken on purpose, which batch runs have to report instead of stitching
+ */
+final class SyntheticPack {
+
+    /**
+     * The ways a generated texture is broken
+     */
+    enum Defect {
+        NOT_POWER_OF_TWO, TRUNCATED, NOT_A_PNG, WRONG_CTM_SIZE, INVALID_MCMETA, MISSING_FRAME
+    }
+
+    /**
+     * A generated texture
+     */
+    static final class Texture {
+        /**
+         * The path of the regular texture under the root, separated by forward slashes
+         */
+        final String path;
+        final int size, frames;
+        final boolean ctm;
+        /**
+         * How the texture is broken, or null if it's valid
+         */
+        final Defect defect;
+        /**
+         * The hash of the stitched pixels, or null if the texture is broken
+         */
+        final String pixels;
+
+        Texture(String path, int size, int frames, boolean ctm, Defect defect, String pixels) {
+            this.path = path;
+            this.size = size;
+            this.frames = frames;
+            this.ctm = ctm;
+            this.defect = defect;
+            this.pixels = pixels;
+        }
+    }
+
+    final File root;
+    /**
+     * The preview the ctm textures are made for, either {@link Preview#DEFAULT} or the 47-tile method in a full 3x3
+     */
+    final Preview preview;
+    final List<Texture> textures;
+
+    private SyntheticPack(File root, Preview preview, List<Texture> textures) {
+        this.root = root;
+        this.preview = preview;
+        this.textures = textures;
+    }
+
+    /**
+     * Generates a pack. Sizes are powers of 2, each half as likely as the one below, like in real packs where most
+     * textures are small. Half of the textures have a ctm texture, either next to them or in a ctm folder.
+     * The first texture always is a valid animation with a ctm texture, so every pack checks animated ctm stitching
+     *
+     * @param root The directory the pack is generated in
+     * @param count The amount of textures
+     * @param minSize The smallest width of a texture
+     * @param maxSize The biggest width of a texture
+     * @param frameCounts The frame counts textures are given, picked at random
+     * @param malformed The share of textures which are broken, from 0 to 1
+     * @param seed The seed, so the same options always generate the same pack
+     * @param preview {@link Preview#DEFAULT} for compact ctm textures, or a full 3x3 using {@link CtmLayouts#FULL}
+     *                for sheets of 12x4 tiles
+     * @return The pack
+     * @throws IOException If a texture couldn't be written
+     */
+    static SyntheticPack generate(File root, int count, int minSize, int maxSize, int[] frameCounts,
+                                  double malformed, long seed, Preview preview) throws IOException {
+        boolean sheets = preview.getLayout() == CtmLayouts.FULL;
+        Random random = new Random(seed);
+        List<Texture> textures = new ArrayList<>(count);
+        int steps = Integer.numberOfTrailingZeros(maxSize) - Integer.numberOfTrailingZeros(minSize);
+
+        for (int i = 0; i < count; i++) {
+            int size = minSize;
+            for (int step = 0; step < steps && random.nextBoolean(); step++)
+                size *= 2;
+
+            int frames = frameCounts[random.nextInt(frameCounts.length)];
+            boolean ctm = random.nextBoolean();
+            Defect defect = random.nextDouble() < malformed
+                    ? Defect.values()[random.nextInt(Defect.values().length)]
+                    : null;
+            if (defect == Defect.WRONG_CTM_SIZE) ctm = true;
+
+            if (i == 0) {
+                frames = Math.max(Arrays.stream(frameCounts).max().getAsInt(), 2);
+                ctm = true;
+                defect = null;
+            }
+
+            String path = "assets/minecraft/textures/block/set" + i % 8 + "/texture" + i + ".png";
+            textures.add(write(root, path, size, frames, ctm, i % 2 == 0, defect, seed + i, sheets));
+        }
+        return new SyntheticPack(root, preview, textures);
+    }
+
+    /**
+     * @param sheets Whether the ctm texture is a sheet of 12x4 tiles, instead of 2x2 tiles for the compact method
+     */
+    private static Texture write(File root, String path, int size, int frames, boolean ctm, boolean ctmFolder,
+                                 Defect defect, long seed, boolean sheets) throws IOException {
+        File regularFile = new File(root, path);
+        File dir = regularFile.getParentFile();
+        Files.createDirectories(dir.toPath());
+
+        int width = defect == Defect.NOT_POWER_OF_TWO ? size + size / 2 : size;
+        BufferedImage regular = create(width, width * frames, seed);
+        BufferedImage ctmImage = null;
+        write(regular, regularFile);
+
+        if (ctm) {
+            //Too small for either method: half the width for the compact one, too few tiles for sheets
+            int columns = sheets ? 12 : 2, rows = sheets ? 4 : 2;
+            if (defect == Defect.WRONG_CTM_SIZE) columns = rows = 1;
+            ctmImage = create(size * columns, size * rows * frames, ~seed);
+
+            File ctmFile = ctmFolder
+                    ? new File(new File(dir, "ctm"), regularFile.getName())
+                    : new File(dir, regularFile.getName().replace(".png", "-ctm.png"));
+            Files.createDirectories(ctmFile.getParentFile().toPath());
+            write(ctmImage, ctmFile);
+        }
+
+        String mcmeta = null;
+        if (defect == Defect.INVALID_MCMETA) mcmeta = "{\"animation\": {\"frametime\": 2";
+        else if (defect == Defect.MISSING_FRAME) mcmeta = "{\"animation\":{\"frames\":[0," + frames + "]}}";
+        else if (frames > 1) mcmeta = "{\"animation\":{\"frametime\":2}}";
+        if (mcmeta != null) Files.write(McMeta.getFile(regularFile).toPath(), mcmeta.getBytes(StandardCharsets.UTF_8));
+
+        if (defect == Defect.TRUNCATED) {
+            try (RandomAccessFile file = new RandomAccessFile(regularFile, "rw")) {
+                file.setLength(Math.max(file.length() * 2 / 3, 64));
+            }
+        } else if (defect == Defect.NOT_A_PNG) {
+            byte[] garbage = new byte[256];
+            new Random(seed).nextBytes(garbage);
+            Files.write(regularFile.toPath(), garbage);
+        }
+
+        String pixels = null;
+        if (defect == null) {
+            BufferedImage stitched = sheets
+                    ? ReferenceStitcher.stitchFull(regular, ctmImage, frames)
+                    : ReferenceStitcher.stitch(regular, ctmImage, frames);
+            pixels = hash(stitched);
+        }
+        return new Texture(path, size, frames, ctm, defect, pixels);
+    }
+
+    /**
+     * Like {@link Textures#create}, with some see-through & fully transparent pixels, whose colours have to survive
+     * stitching as well
+     */
+    private static BufferedImage create(int width, int height, long seed) {
+        BufferedImage img = Textures.create(width, height, seed);
+        int[] pixels = ImageAccess.getPixels(img);
+
+        for (int i = 0; i < pixels.length; i += 5)
+            pixels[i] = (i * 31 & 0xFF) << 24 | pixels[i] & 0xFFFFFF;
+        return img;
+    }
+
+    private static void write(BufferedImage img, File file) throws IOException {
+        if (!Main.writeImage(img, file)) throw new IOException("Couldn't write " + file);
+    }
+
+    /**
+     * @param img An image
+     * @return The SHA-256 hash of the image's size & ARGB pixels
+     */
+    static String hash(BufferedImage img) {
+        int width = img.getWidth(), height = img.getHeight();
+        MessageDigest digest = Hashes.newDigest();
+        digest.update(ByteBuffer.allocate(8).putInt(width).putInt(height).array());
+
+        int[] row = new int[width];
+        ByteBuffer bytes = ByteBuffer.allocate(width * 4);
+        for (int y = 0; y < height; y++) {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            digest.update(bytes.array());
+        }
+        return Hashes.toHex(digest.digest());
+    }
+
+    /**
+     * @param texture A texture of the pack
+     * @param outputDir The directory a batch run wrote to, mirroring the pack
+     * @return The file the texture is stitched to
+     */
+    File getOutput(Texture texture, File outputDir) {
+        File regular = new File(root, texture.path);
+        File dir = new File(outputDir, root.toPath().relativize(regular.getParentFile().toPath()).toString());
+        return Main.getOutputFile(regular, dir, preview);
+    }
+
+    /**
+     * @return The amount of textures which aren't broken
+     */
+    int getValidCount() {
+        int valid = 0;
+        for (Texture texture : textures) {
+            if (texture.defect == null) valid++;
+        }
+        return valid;
+    }
+}
@@ -0,0 +1,36 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+
+/**
+ * Generates textures for the benchmarks. Pixels follow a pattern with some noise, so they compress
+ * roughly like hand-made textures instead of like pure noise
+ */
+final class Textures {
+
+    private Textures() {}
+
+    /**
+     * @param width The width of the texture
+     * @param height The height of the texture
+     * @param seed The seed of the noise, so every run benchmarks the same pixels
+     * @return A packed ARGB texture
+     */
+    static BufferedImage create(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage img = new BufferedImage(width, height, TYPE_INT_ARGB);
+        int[] pixels = ImageAccess.getPixels(img);
+
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                int base = ((x * 7) ^ (y * 13)) & 0x3F;
+                int r = 96 + base + random.nextInt(16), g = 64 + base + random.nextInt(16), b = 32 + base;
+                pixels[i] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return img;
+    }
+}
@@ -0,0 +1,247 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs the stitched textures of a batch run into a few big sheets instead of a file per texture,
+ * with a json index of where each texture ended up. Sheets are named "name-0.png", "name-1.png" & so on,
+ * the index "name.json"
+ */
+final class Atlas {
+
+    /**
+     * The default width & height sheets are kept under, which most graphics cards can still load as one texture
+     */
+    static final int DEFAULT_SIZE = 4096;
+
+    private final File dir;
+    private final String name;
+    private final int maxSize;
+    private final PngWriter.Settings pngSettings;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * @param file The index file, or the first sheet. Its name without extension names every sheet
+     * @param maxSize The width & height sheets are kept under. Textures bigger than that get a sheet of their own
+     * @param pngSettings The settings the sheets are encoded with, or null for the defaults
+     */
+    Atlas(File file, int maxSize, PngWriter.Settings pngSettings) {
+        this.dir = file.getAbsoluteFile().getParentFile();
+        this.name = file.getName().replaceAll("(?i)\\.(png|json)$", "");
+        this.maxSize = maxSize;
+        this.pngSettings = pngSettings != null ? pngSettings : PngWriter.Settings.DEFAULT;
+    }
+
+    /**
+     * @param name The name of the texture in the index
+     * @param image The stitched texture. It's kept until the atlas is written
+     * @param frameCount The amount of frames stacked in the image
+     */
+    void add(String name, BufferedImage image, int frameCount) {
+        entries.add(new Entry(name, image, frameCount));
+    }
+
+    /**
+     * Packs every added texture & writes the sheets & index, each in a single pass
+     *
+     * @return Whether everything was written
+     */
+    boolean write() {
+        List<Sheet> sheets = pack();
+
+        List<Object> sheetList = new ArrayList<>();
+        Map<String, Object> textures = new LinkedHashMap<>();
+        for (int s = 0; s < sheets.size(); s++) {
+            Sheet sheet = sheets.get(s);
+            File file = new File(dir, name + "-" + s + ".png");
+
+            try {
+                sheet.write(file, pngSettings);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("file", file.getName());
+            json.put("width", (long) sheet.width);
+            json.put("height", (long) sheet.height);
+            sheetList.add(json);
+
+            for (Shelf shelf : sheet.shelves) {
+                for (Entry entry : shelf.entries) {
+                    Map<String, Object> texture = new LinkedHashMap<>();
+                    texture.put("sheet", (long) s);
+                    texture.put("x", (long) entry.x);
+                    texture.put("y", (long) entry.y);
+                    texture.put("width", (long) entry.width);
+                    texture.put("height", (long) entry.height);
+                    texture.put("frames", (long) entry.frameCount);
+                    textures.put(entry.name, texture);
+                }
+            }
+        }
+
+        //Sorted by name, so reruns over the same pack give the same index
+        Map<String, Object> sorted = new LinkedHashMap<>();
+        textures.keySet().stream().sorted().forEach(key -> sorted.put(key, textures.get(key)));
+
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("version", Main.VERSION);
+        root.put("sheets", sheetList);
+        root.put("textures", sorted);
+
+        try {
+            Files.write(new File(dir, name + ".json").toPath(),
+                        (Json.write(root) + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        System.out.printf("Packed %d texture(s) into %d sheet(s): %s\n", entries.size(), sheets.size(),
+                          new File(dir, name + ".json"));
+        return true;
+    }
+
+    /**
+     * Shelf packing: textures are placed from tallest to shortest, left to right in rows as tall as their first
+     * texture. Each texture goes on the first row of the current sheet with room left, or starts a new row
+     *
+     * @return The sheets, each with its textures placed
+     */
+    private List<Sheet> pack() {
+        entries.sort(Comparator.comparingInt((Entry entry) -> -entry.height)
+                               .thenComparingInt(entry -> -entry.width)
+                               .thenComparing(entry -> entry.name));
+
+        List<Sheet> sheets = new ArrayList<>();
+        Sheet current = null;
+
+        for (Entry entry : entries) {
+            if (entry.width > maxSize || entry.height > maxSize) {
+                Sheet own = new Sheet();
+                own.addShelf(entry.height).add(entry);
+                sheets.add(own);
+                continue;
+            }
+
+            Shelf shelf = current == null ? null : current.findShelf(entry.width, maxSize);
+            if (shelf == null && current != null && current.height + entry.height <= maxSize)
+                shelf = current.addShelf(entry.height);
+
+            if (shelf == null) {
+                current = new Sheet();
+                sheets.add(current);
+                shelf = current.addShelf(entry.height);
+            }
+
+            shelf.add(entry);
+        }
+
+        for (Sheet sheet : sheets) {
+            for (Shelf shelf : sheet.shelves)
+                sheet.width = Math.max(sheet.width, shelf.width);
+        }
+        return sheets;
+    }
+
+    private static final class Entry {
+        final String name;
+        final BufferedImage image;
+        final int width, height, frameCount;
+        int x, y;
+
+        Entry(String name, BufferedImage image, int frameCount) {
+            this.name = name;
+            this.image = image;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.frameCount = frameCount;
+        }
+    }
+
+    private static final class Shelf {
+        final int y, height;
+        final List<Entry> entries = new ArrayList<>();
+        int width;
+
+        Shelf(int y, int height) {
+            this.y = y;
+            this.height = height;
+        }
+
+        void add(Entry entry) {
+            entry.x = width;
+            entry.y = y;
+            entries.add(entry);
+            width += entry.width;
+        }
+    }
+
+    private static final class Sheet {
+        final List<Shelf> shelves = new ArrayList<>();
+        int width, height;
+
+        /**
+         * @return The first row with room for a texture of the given width, or null if none has.
+         *         Textures are added from tallest to shortest, so every row is tall enough
+         */
+        Shelf findShelf(int width, int maxSize) {
+            for (Shelf shelf : shelves) {
+                if (shelf.width + width <= maxSize) return shelf;
+            }
+            return null;
+        }
+
+        Shelf addShelf(int height) {
+            Shelf shelf = new Shelf(this.height, height);
+            shelves.add(shelf);
+            this.height += height;
+            return shelf;
+        }
+
+        /**
+         * Encodes the sheet row by row, so only a single row of textures is ever copied into a buffer
+         */
+        void write(File file, PngWriter.Settings settings) throws IOException {
+            try (PngWriter writer = new PngWriter(new BufferedOutputStream(new FileOutputStream(file)),
+                                                  width, height, settings)) {
+                int[] band = null;
+                try {
+                    for (Shelf shelf : shelves) {
+                        int length = width * shelf.height;
+                        if (band == null || band.length < length) {
+                            BufferPool.get().release(band);
+                            band = BufferPool.get().acquire(length);
+                        }
+                        Arrays.fill(band, 0, length, 0); //Space next to shorter textures stays transparent
+
+                        for (Entry entry : shelf.entries) {
+                            int[] pixels = ImageAccess.getPixels(entry.image);
+                            for (int row = 0; row < entry.height; row++)
+                                System.arraycopy(pixels, row * entry.width, band, row * width + entry.x, entry.width);
+                        }
+
+                        writer.writeRows(band, 0, shelf.height);
+                    }
+                } finally {
+                    BufferPool.get().release(band);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stitches every texture of a resource pack directory tree in a single run
+ */
+final class BatchStitcher {
+
+    private final File root, outputDir;
+    private final PngWriter.Settings pngSettings;
+    private final OutputCache cache;
+    private final Preview preview;
+    private final Composite composite;
+    private final Pipeline pipeline;
+    private final Metrics metrics;
+    private final int threads;
+
+    //Work-stealing, so big & small textures balance out over the threads. Kept for the whole run, to stay warm
+    private final ExecutorService pool;
+
+    /**
+     * @param root The directory which is searched for textures
+     * @param outputDir The directory the stitched textures are written to, mirroring the layout of root.
+     *                  If null, every stitched texture is written next to its regular texture
+     * @param pngSettings The settings of the streaming png writer, or null to write through ImageIO
+     * @param cache The cache unchanged textures are copied from, or null to always stitch
+     * @param preview The preview every texture is stitched into
+     * @param composite The tint & overlay drawn onto every stitched texture, or null if there are none
+     * @param pipeline The stages textures are stitched in, or null to stitch each texture on a single thread
+     * @param metrics The metrics every stitched texture is recorded in, or null if none are kept
+     */
+    BatchStitcher(File root, File outputDir, PngWriter.Settings pngSettings, OutputCache cache, Preview preview,
+                  Composite composite, Pipeline pipeline, Metrics metrics) {
+        this(root, outputDir, pngSettings, cache, preview, composite, pipeline, metrics, 0);
+    }
+
+    /**
+     * @param root The directory which is searched for textures
+     * @param outputDir The directory the stitched textures are written to, mirroring the layout of root.
+     *                  If null, every stitched texture is written next to its regular texture
+     * @param pngSettings The settings of the streaming png writer, or null to write through ImageIO
+     * @param cache The cache unchanged textures are copied from, or null to always stitch
+     * @param preview The preview every texture is stitched into
+     * @param composite The tint & overlay drawn onto every stitched texture, or null if there are none
+     * @param pipeline The stages textures are stitched in, or null to stitch each texture on a single thread
+     * @param metrics The metrics every stitched texture is recorded in, or null if none are kept
+     * @param threads The amount of textures stitched at once without a pipeline, or 0 for the amount of cores
+     */
+    BatchStitcher(File root, File outputDir, PngWriter.Settings pngSettings, OutputCache cache, Preview preview,
+                  Composite composite, Pipeline pipeline, Metrics metrics, int threads) {
+        this.root = root;
+        this.outputDir = outputDir;
+        this.pngSettings = pngSettings;
+        this.cache = cache;
+        this.preview = preview;
+        this.composite = composite;
+        this.pipeline = pipeline;
+        this.metrics = metrics;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.pool = Executors.newWorkStealingPool(this.threads);
+
+        //Decoding thousands of small pngs doesn't need ImageIO's disk cache
+        ImageIO.setUseCache(false);
+    }
+
+    void run() {
+        List<TextureJob> jobs = findJobs();
+        if (jobs == null) return;
+
+        if (jobs.isEmpty()) {
+            System.out.println("No textures found in " + root);
+            return;
+        }
+
+        System.out.printf("Stitching %d texture(s) using %s...\n", jobs.size(), getThreads());
+        stitchAll(jobs);
+    }
+
+    /**
+     * Checks every texture under root from its headers alone, in parallel, without stitching anything.
+     * Prints a json report listing every problem found to stdout
+     *
+     * @return Whether every texture can be stitched
+     */
+    boolean check() {
+        long start = System.nanoTime();
+
+        List<TextureJob> jobs = findJobs();
+        if (jobs == null) return false;
+
+        List<Future<List<String>>> results = new ArrayList<>(jobs.size());
+        for (TextureJob job : jobs)
+            results.add(pool.submit(job::check));
+
+        List<Object> problems = new ArrayList<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            List<String> found;
+            try {
+                found = results.get(i).get();
+            } catch (ExecutionException e) {
+                found = List.of(e.getCause().toString());
+            } catch (InterruptedException e) {
+                found = List.of(e.toString());
+            }
+
+            TextureJob job = jobs.get(i);
+            for (String problem : found)
+                problems.add(getProblem(job.getRegular(), job.getCtm(), problem));
+        }
+
+        //Animation settings are only read through their texture, so ones without a texture would go unnoticed
+        try (Stream<Path> files = Files.walk(root.toPath())) {
+            files.filter(file -> file.getFileName().toString().toLowerCase().endsWith(".png.mcmeta"))
+                 .map(Path::toFile)
+                 .sorted()
+                 .forEach(file -> {
+                     String texture = file.getName().substring(0, file.getName().length() - ".mcmeta".length());
+                     if (!new File(file.getParentFile(), texture).isFile())
+                         problems.add(getProblem(file, null, "Animation settings without a texture"));
+                 });
+        } catch (IOException e) {
+            problems.add(getProblem(root, null, e.toString()));
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("version", Main.VERSION);
+        report.put("root", root.getPath());
+        report.put("preview", preview.toString());
+        report.put("checked", (long) jobs.size());
+        report.put("ok", problems.isEmpty());
+        report.put("ms", (System.nanoTime() - start) / 1e6);
+        report.put("problems", problems);
+        System.out.println(Json.write(report));
+
+        return problems.isEmpty();
+    }
+
+    private Map<String, Object> getProblem(File file, File ctm, String problem) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("file", getRelativePath(file));
+        if (ctm != null) json.put("ctm", getRelativePath(ctm));
+        json.put("problem", problem);
+        return json;
+    }
+
+    /**
+     * @return The path of a file under root, separated by forward slashes on every platform
+     */
+    private String getRelativePath(File file) {
+        return root.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Stitches every texture under root into the sheets of an atlas, instead of writing a file per texture
+     *
+     * @param atlas The atlas the stitched textures are packed into
+     * @return Whether the atlas was written
+     */
+    boolean stitchAtlas(Atlas atlas) {
+        List<TextureJob> jobs = findJobs();
+        if (jobs == null) return false;
+
+        if (jobs.isEmpty()) {
+            System.out.println("No textures found in " + root);
+            return false;
+        }
+
+        System.out.printf("Stitching %d texture(s) into an atlas using %s...\n", jobs.size(), getThreads());
+        for (TextureJob job : jobs)
+            job.keepImage();
+        stitchAll(jobs);
+
+        for (TextureJob job : jobs) {
+            if (job.getImage() == null) continue; //Failed textures are left out, they're listed above
+
+            atlas.add(getRelativePath(job.getRegular()), job.getImage(), job.getFrameCount());
+        }
+        return atlas.write();
+    }
+
+    /**
+     * Stitches the given textures in parallel, printing the outcome of each & the total throughput
+     *
+     * @param jobs The textures to stitch
+     * @return The amount of textures which were stitched
+     */
+    int stitchAll(List<TextureJob> jobs) {
+        long start = System.nanoTime();
+        List<Future<String>> results;
+
+        if (pipeline != null)
+            results = pipeline.submit(jobs);
+        else {
+            results = new ArrayList<>(jobs.size());
+            for (TextureJob job : jobs)
+                results.add(pool.submit(job::call));
+        }
+
+        int stitched = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            String error;
+            try {
+                error = results.get(i).get();
+            } catch (ExecutionException e) {
+                error = e.getCause().toString();
+            } catch (InterruptedException e) {
+                error = e.toString();
+            }
+
+            //Jobs which never started, if waiting for them was interrupted, have no metrics
+            if (metrics != null && jobs.get(i).getMetrics() != null) metrics.record(jobs.get(i).getMetrics());
+
+            if (error == null) {
+                stitched++;
+                System.out.printf("%s %s (%d ms)\n",
+                                  jobs.get(i).isCached() ? "[cached]" : "[ok]    ", jobs.get(i),
+                                  jobs.get(i).getNanos() / 1_000_000);
+            } else {
+                System.out.println("[failed] " + jobs.get(i) + ": " + error);
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Stitched %d/%d texture(s) in %.2fs (%.1f textures/s)\n",
+                          stitched, jobs.size(), seconds, stitched / Math.max(seconds, 1e-9));
+        if (cache != null) System.out.println(cache.getStats());
+        System.out.println(BufferPool.getStats());
+        if (metrics != null) metrics.write();
+        return stitched;
+    }
+
+    /**
+     * Stops the threads of the batch pool & of the pipeline, if there is one, once they're done with the jobs
+     * already submitted. Only needed where several stitchers are made in one process, like in benchmarks
+     */
+    void shutdown() {
+        pool.shutdown();
+        if (pipeline != null) pipeline.shutdown();
+    }
+
+    /**
+     * @return The preview every texture is stitched into
+     */
+    Preview getPreview() {
+        return preview;
+    }
+
+    private String getThreads() {
+        return pipeline != null ? pipeline.toString() : threads + " thread(s)";
+    }
+
+    /**
+     * @param regular The regular texture, somewhere under root
+     * @param ctm The ctm texture, or null if none is used
+     * @return A job stitching the given texture
+     */
+    TextureJob createJob(File regular, File ctm) {
+        String name = root.toPath().relativize(regular.toPath()).toString();
+        if (ctm != null) name += " (ctm: " + root.toPath().relativize(ctm.toPath()) + ")";
+
+        File output = Main.getOutputFile(regular, getOutputDir(regular), preview);
+        return new TextureJob(name, regular, ctm, output, pngSettings, cache, preview, composite);
+    }
+
+    /**
+     * @return Every regular texture under root paired with its ctm texture, or null if root couldn't be read
+     */
+    List<TextureJob> findJobs() {
+        try (Stream<Path> files = Files.walk(root.toPath())) {
+            return files.filter(Files::isRegularFile)
+                        .map(Path::toFile)
+                        .filter(this::isRegularTexture)
+                        .sorted()
+                        .map(file -> createJob(file, findCtm(file)))
+                        .collect(Collectors.toList());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private boolean isRegularTexture(File file) {
+        String name = file.getName().toLowerCase();
+        File parent = file.getParentFile();
+
+        return name.endsWith(".png")
+                && !name.endsWith("-ctm.png")
+                && !Main.isOutputFile(name, preview)
+                && !(parent != null && parent.getName().equalsIgnoreCase("ctm"));
+    }
+
+    /**
+     * Looks for the ctm texture belonging to a regular texture, either as "foo-ctm.png" next to it,
+     * or as "ctm/foo.png" in a subfolder
+     *
+     * @param regular The regular texture
+     * @return The ctm texture, or null if there is none
+     */
+    private static File findCtm(File regular) {
+        File sibling = new File(regular.getParentFile(), regular.getName().replace(".png", "") + "-ctm.png");
+        if (sibling.isFile()) return sibling;
+
+        File subfolder = new File(new File(regular.getParentFile(), "ctm"), regular.getName());
+        if (subfolder.isFile()) return subfolder;
+
+        return null;
+    }
+
+    private File getOutputDir(File regular) {
+        if (outputDir == null) return regular.getParentFile();
+
+        Path relative = root.toPath().relativize(regular.getParentFile().toPath());
+        return outputDir.toPath().resolve(relative).toFile();
+    }
+}
@@ -0,0 +1,124 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-thread pools of pixel buffers, so stitching texture after texture of the same size allocates nothing new.
+ * Buffers are grouped by their exact length, as packs mostly use a handful of texture sizes.
+ * Taking a buffer & never giving it back is fine, it's just garbage collected like any other array.
+ * Buffers may be given back from any thread, like the later stages of a {@link Pipeline} do
+ */
+final class BufferPool {
+
+    /**
+     * Buffers at most this many pixels long are kept, bigger ones are always allocated. 16M pixels = 64 MB
+     */
+    private static final int MAX_BUFFER = 1 << 24;
+
+    /**
+     * The amount of pixels a single thread keeps at most, over all its buffers. 32M pixels = 128 MB
+     */
+    private static final long MAX_RETAINED = 1L << 25;
+
+    private static final int MAX_PER_SIZE = 4;
+
+    private static final ThreadLocal<BufferPool> POOLS = ThreadLocal.withInitial(BufferPool::new);
+    private static final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    //Ordered from least to most recently used size, so sizes no longer stitched are dropped first
+    private final Map<Integer, ArrayDeque<int[]>> buffers = new LinkedHashMap<>(16, 0.75f, true);
+    private long retained;
+
+    //Buffers given back by other threads, only taken into the pool by its own thread
+    private final Thread owner = Thread.currentThread();
+    private final Queue<int[]> returned = new ConcurrentLinkedQueue<>();
+
+    private BufferPool() {}
+
+    /**
+     * @return The pool of the current thread
+     */
+    static BufferPool get() {
+        return POOLS.get();
+    }
+
+    /**
+     * @param length The amount of pixels needed
+     * @return A buffer of exactly the given length. Its contents are undefined, unless it's freshly allocated
+     */
+    int[] acquire(int length) {
+        for (int[] buffer; (buffer = returned.poll()) != null; )
+            release(buffer);
+
+        ArrayDeque<int[]> free = buffers.get(length);
+        int[] buffer = free == null ? null : free.pollLast();
+
+        if (buffer == null) {
+            misses.increment();
+            return new int[length];
+        }
+
+        hits.increment();
+        retained -= length;
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. It may not be used anymore afterwards.
+     * Buffers given back by another thread than the pool's own are added on its next {@link #acquire}
+     *
+     * @param buffer The buffer, or null
+     */
+    void release(int[] buffer) {
+        if (buffer == null || buffer.length > MAX_BUFFER) return;
+
+        if (Thread.currentThread() != owner) {
+            returned.add(buffer);
+            return;
+        }
+
+        ArrayDeque<int[]> free = buffers.computeIfAbsent(buffer.length, length -> new ArrayDeque<>());
+        if (free.size() >= MAX_PER_SIZE) return;
+
+        free.addLast(buffer);
+        retained += buffer.length;
+
+        //Over the limit, the buffers of the sizes used longest ago are dropped
+        Iterator<ArrayDeque<int[]>> sizes = buffers.values().iterator();
+        while (retained > MAX_RETAINED && sizes.hasNext()) {
+            ArrayDeque<int[]> oldest = sizes.next();
+            while (retained > MAX_RETAINED && !oldest.isEmpty())
+                retained -= oldest.pollFirst().length;
+            if (oldest.isEmpty()) sizes.remove();
+        }
+    }
+
+    /**
+     * @return How often a buffer was reused from a pool
+     */
+    static long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return How often a buffer had to be allocated
+     */
+    static long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The hit & miss counts over the pools of all threads
+     */
+    static String getStats() {
+        long hits = getHits(), misses = getMisses();
+        return String.format("Buffer pool: %d hit(s), %d miss(es) (%.0f%% reused)",
+                             hits, misses, 100.0 * hits / Math.max(hits + misses, 1));
+    }
+}
@@ -0,0 +1,165 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tinting & overlays applied on top of stitched textures, like biome-coloured grass or an overlay ctm texture
+ * drawn over its base block. The overlay is stitched with the same layout as the texture it's drawn on
+ */
+final class Composite {
+
+    /**
+     * How the overlay is drawn over the stitched texture
+     */
+    enum Blend {
+        /**
+         * Regular alpha blending of straight alpha pngs
+         */
+        OVER,
+        /**
+         * Blending of pngs already premultiplied by their alpha, where bright see-through pixels add light
+         */
+        PREMULTIPLIED;
+
+        /**
+         * @param name The name of a blend mode, ignoring case
+         * @return The blend mode, or null if there is none with that name
+         */
+        static Blend byName(String name) {
+            for (Blend B : values()) {
+                if (B.toString().equalsIgnoreCase(name))
+                    return B;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Tint value of a composite which doesn't tint
+     */
+    static final int NO_TINT = -1;
+
+    private final int tint;
+    private final Blend blend;
+    private final File overlay, overlayCtm;
+
+    /**
+     * @param tint The RGB colour pixels are multiplied with, or {@link #NO_TINT}.
+     *             With an overlay only the overlay is tinted, like minecraft's grass side overlay
+     * @param blend How the overlay is drawn
+     * @param overlay The regular texture of the overlay, or null if there is none
+     * @param overlayCtm The ctm texture of the overlay, or null if none is used
+     */
+    Composite(int tint, Blend blend, File overlay, File overlayCtm) {
+        this.tint = tint;
+        this.blend = blend;
+        this.overlay = overlay;
+        this.overlayCtm = overlayCtm;
+    }
+
+    /**
+     * @param hex A colour like "7fb238" or "#7FB238"
+     * @return The colour as RGB
+     * @throws IllegalArgumentException If the colour isn't 6 hexadecimal digits
+     */
+    static int parseTint(String hex) {
+        String digits = hex.startsWith("#") ? hex.substring(1) : hex;
+        if (!digits.matches("[0-9a-fA-F]{6}"))
+            throw new IllegalArgumentException("Tint has to be an RGB colour like 7fb238, got: " + hex);
+        return Integer.parseInt(digits, 16);
+    }
+
+    /**
+     * @return The overlay textures & their animation settings, which change the stitched texture as well
+     */
+    List<File> getInputs() {
+        List<File> inputs = new ArrayList<>(3);
+        if (overlay != null) {
+            inputs.add(overlay);
+            inputs.add(McMeta.getFile(overlay));
+        }
+        if (overlayCtm != null) inputs.add(overlayCtm);
+        return inputs;
+    }
+
+    /**
+     * Checks whether the overlay fits the texture it's drawn on, from the headers alone.
+     * It needs the same size & frames, so it can be stitched with the same copy plan
+     *
+     * @param regular The header of the regular texture
+     * @param ctm The header of the ctm texture, or null if none is used
+     * @return A description of the problem, or null if the overlay fits
+     */
+    String validate(PngHeader regular, PngHeader ctm) {
+        if (overlay == null) return null;
+
+        try {
+            PngHeader overlayHeader = PngHeader.read(overlay);
+            if (overlayHeader.width != regular.width || overlayHeader.height != regular.height)
+                return "Overlay is " + overlayHeader.width + "x" + overlayHeader.height
+                        + ", but the regular texture is " + regular.width + "x" + regular.height;
+
+            if ((ctm == null) != (overlayCtm == null))
+                return ctm == null
+                        ? "Overlay has a ctm texture, but the regular texture doesn't"
+                        : "Regular texture has a ctm texture, but the overlay doesn't";
+
+            if (ctm != null) {
+                PngHeader overlayCtmHeader = PngHeader.read(overlayCtm);
+                if (overlayCtmHeader.width != ctm.width || overlayCtmHeader.height != ctm.height)
+                    return "Overlay ctm is " + overlayCtmHeader.width + "x" + overlayCtmHeader.height
+                            + ", but the ctm texture is " + ctm.width + "x" + ctm.height;
+            }
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the overlay, if there is one
+     *
+     * @param plan The copy plan the texture is stitched with
+     * @param frameCount The amount of frames the texture has
+     * @return The compositor drawing this composite onto stitched frames, or null if the overlay couldn't be read
+     */
+    Compositor load(CopyPlan plan, int frameCount) {
+        if (overlay == null) return new Compositor(this, plan, null, null);
+
+        BufferedImage regular = Main.loadImage(overlay, plan.getSourceRows(CopyPlan.REGULAR, frameCount));
+        if (regular == null) return null;
+
+        BufferedImage ctm = null;
+        if (overlayCtm != null) {
+            ctm = Main.loadImage(overlayCtm, plan.getSourceRows(CopyPlan.CTM, frameCount));
+            if (ctm == null) {
+                ImageAccess.release(regular);
+                return null;
+            }
+        }
+        return new Compositor(this, plan, regular, ctm);
+    }
+
+    int getTint() {
+        return tint;
+    }
+
+    Blend getBlend() {
+        return blend;
+    }
+
+    /**
+     * @return A description of the composite, part of the cache key of stitched textures.
+     *         The overlay's contents are hashed separately, see {@link #getInputs()}
+     */
+    @Override
+    public String toString() {
+        return "tint=" + (tint == NO_TINT ? "none" : String.format("%06x", tint))
+                + ",blend=" + blend.toString().toLowerCase()
+                + ",overlay=" + (overlay != null) + ",overlayCtm=" + (overlayCtm != null);
+    }
+}
@@ -0,0 +1,88 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Draws a {@link Composite} onto the stitched frames of a single texture, with its overlay already decoded.
+ * Frames may be composited from several threads at once
+ */
+final class Compositor {
+
+    private final Composite composite;
+    private final CopyPlan plan;
+    private final BufferedImage overlay, overlayCtm;
+    private final int[] overlayPixels, overlayCtmPixels;
+    //The pool the overlay was decoded into, which may be another thread's than the one releasing it
+    private final BufferPool pool = BufferPool.get();
+
+    /**
+     * @param composite The composite to draw
+     * @param plan The copy plan the texture is stitched with, which stitches the overlay as well
+     * @param overlay The decoded regular texture of the overlay, or null if there is none
+     * @param overlayCtm The decoded ctm texture of the overlay, or null if none is used
+     */
+    Compositor(Composite composite, CopyPlan plan, BufferedImage overlay, BufferedImage overlayCtm) {
+        this.composite = composite;
+        this.plan = plan;
+        this.overlay = overlay;
+        this.overlayCtm = overlayCtm;
+        this.overlayPixels = overlay == null ? null : ImageAccess.getPixels(overlay);
+        this.overlayCtmPixels = overlayCtm == null ? null : ImageAccess.getPixels(overlayCtm);
+    }
+
+    /**
+     * Tints a stitched frame, or draws the tinted overlay over it
+     *
+     * @param out The stitched pixels
+     * @param outFrame The frame of the output to composite
+     * @param frame The frame of the overlay drawn onto it
+     */
+    void apply(int[] out, int outFrame, int frame) {
+        int frameSize = plan.getWidth() * plan.getHeight(), offset = outFrame * frameSize;
+        int tint = composite.getTint();
+
+        if (overlayPixels == null) {
+            if (tint != Composite.NO_TINT) PixelOps.multiply(out, offset, frameSize, tint);
+            return;
+        }
+
+        int[] layer = BufferPool.get().acquire(frameSize);
+        try {
+            if (!plan.coversFrame()) Arrays.fill(layer, 0);
+            StitchKernel.stitchFrame(plan, overlayPixels, overlayCtmPixels, frame, layer, 0);
+
+            if (tint != Composite.NO_TINT) PixelOps.multiply(layer, 0, frameSize, tint);
+
+            if (composite.getBlend() == Composite.Blend.PREMULTIPLIED)
+                PixelOps.overPremultiplied(out, offset, layer, 0, frameSize);
+            else
+                PixelOps.over(out, offset, layer, 0, frameSize);
+        } finally {
+            BufferPool.get().release(layer);
+        }
+    }
+
+    /**
+     * Adds the overlay pixels a frame is composited with to its hash, see {@link FrameIndex}
+     *
+     * @param hash The hash of the frame so far
+     * @param frame The frame of the overlay
+     * @return The new hash
+     */
+    long hashFrame(long hash, int frame) {
+        return overlayPixels == null ? hash : FrameIndex.hashFrame(hash, plan, overlayPixels, overlayCtmPixels, frame);
+    }
+
+    Composite getComposite() {
+        return composite;
+    }
+
+    /**
+     * Gives the decoded overlay back to the {@link BufferPool} of the thread which decoded it
+     */
+    void release() {
+        ImageAccess.release(overlay, pool);
+        ImageAccess.release(overlayCtm, pool);
+    }
+}
@@ -0,0 +1,136 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.util.Arrays;
+
+/**
+ * A precomputed list of square copies from the regular & ctm texture into a single stitched frame.
+ * Layouts compile a plan once per texture size, after which {@link StitchKernel} runs it for every frame
+ * without looking at the layout again
+ */
+final class CopyPlan {
+
+    static final int REGULAR = 0, CTM = 1;
+
+    private final int tileSize, ctmWidth, ctmFrameHeight, width, height;
+
+    //Every copy takes 4 ints: the source, the offset in the source frame, the offset in the output frame & its size
+    private int[] copies = new int[64];
+    private int count;
+    private long pixelCount;
+
+    //The amount of rows of a source frame the copies read, for each source
+    private final int[] sourceRows = new int[2];
+
+    /**
+     * @param tileSize The width of the regular texture, which is also the height of a single frame
+     * @param ctmWidth The width of the ctm texture, or 0 if none is used
+     * @param ctmFrameHeight The height of a single frame of the ctm texture, or 0 if none is used
+     * @param width The width of a stitched frame
+     * @param height The height of a stitched frame
+     */
+    CopyPlan(int tileSize, int ctmWidth, int ctmFrameHeight, int width, int height) {
+        this.tileSize = tileSize;
+        this.ctmWidth = ctmWidth;
+        this.ctmFrameHeight = ctmFrameHeight;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Adds a copy of a square from one of the textures to the stitched frame
+     *
+     * @param source Either {@link #REGULAR} or {@link #CTM}
+     * @param srcX The x offset of the square within a frame of the source, in pixels
+     * @param srcY The y offset of the square within a frame of the source, in pixels
+     * @param dstX The x offset of the square within the stitched frame, in pixels
+     * @param dstY The y offset of the square within the stitched frame, in pixels
+     * @param size The width & height of the square, in pixels
+     */
+    void add(int source, int srcX, int srcY, int dstX, int dstY, int size) {
+        if (count * 4 == copies.length) copies = Arrays.copyOf(copies, copies.length * 2);
+
+        int i = count++ * 4;
+        copies[i] = source;
+        copies[i + 1] = srcY * getSourceWidth(source) + srcX;
+        copies[i + 2] = dstY * width + dstX;
+        copies[i + 3] = size;
+
+        sourceRows[source] = Math.max(sourceRows[source], srcY + size);
+        pixelCount += (long) size * size;
+    }
+
+    /**
+     * @return Whether the copies write every pixel of a stitched frame, so it doesn't have to be cleared first
+     */
+    boolean coversFrame() {
+        return pixelCount == (long) width * height;
+    }
+
+    /**
+     * @return The amount of pixels copied for every stitched frame
+     */
+    long getPixelCount() {
+        return pixelCount;
+    }
+
+    /**
+     * @param source Either {@link #REGULAR} or {@link #CTM}
+     * @param frameCount The amount of frames stitched
+     * @return The amount of rows from the top of the source the copies read, over all frames.
+     *         Rows below aren't used, so they don't have to be decoded
+     */
+    int getSourceRows(int source, int frameCount) {
+        int frameHeight = getSourceFrameSize(source) / Math.max(getSourceWidth(source), 1);
+        return (frameCount - 1) * frameHeight + sourceRows[source];
+    }
+
+    /**
+     * @param source Either {@link #REGULAR} or {@link #CTM}
+     * @return The amount of rows from the top of a single source frame the copies read
+     */
+    int getFrameRows(int source) {
+        return sourceRows[source];
+    }
+
+    /**
+     * @return The copies, 4 ints each: source, offset in the source frame, offset in the stitched frame & size.
+     *         Only the first {@link #getCount()} copies are used
+     */
+    int[] getCopies() {
+        return copies;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @param source Either {@link #REGULAR} or {@link #CTM}
+     * @return The width of the source, in pixels
+     */
+    int getSourceWidth(int source) {
+        return source == CTM ? ctmWidth : tileSize;
+    }
+
+    /**
+     * @param source Either {@link #REGULAR} or {@link #CTM}
+     * @return The amount of pixels in a single frame of the source
+     */
+    int getSourceFrameSize(int source) {
+        return source == CTM ? ctmWidth * ctmFrameHeight : tileSize * tileSize;
+    }
+
+    /**
+     * @return The width of a stitched frame
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The height of a stitched frame
+     */
+    int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,37 @@
+package com.Noobfortress.CTM_Stitcher;
+
+/**
+ * A ctm method: how the tiles of a ctm texture are picked for each block of a grid, depending on the blocks
+ * next to it. Layouts only decide what goes where, the copying is done by {@link StitchKernel}
+ *
+ * @see CtmLayouts
+ */
+interface CtmLayout {
+
+    /**
+     * @return The name of the method, as used on the command line & in cache keys
+     */
+    String getName();
+
+    /**
+     * Checks whether a ctm texture fits this method
+     *
+     * @param tileSize The width of the regular texture, which is also the size of a single block
+     * @param frameCount The amount of frames of the regular texture
+     * @param ctmWidth The width of the ctm texture
+     * @param ctmHeight The height of the ctm texture
+     * @return A description of the problem, or null if the ctm texture is valid
+     */
+    String validate(int tileSize, int frameCount, int ctmWidth, int ctmHeight);
+
+    /**
+     * Compiles the copies stitching one frame of a grid. Holes in the grid are left transparent
+     *
+     * @param tileSize The width of the regular texture, which is also the size of a single block
+     * @param ctmWidth The width of the ctm texture
+     * @param ctmFrameHeight The height of a single frame of the ctm texture
+     * @param grid The blocks to stitch
+     * @return The copy plan
+     */
+    CopyPlan compile(int tileSize, int ctmWidth, int ctmFrameHeight, Grid grid);
+}
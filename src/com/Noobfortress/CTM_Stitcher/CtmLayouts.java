@@ -0,0 +1,279 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import com.Noobfortress.CTM_Stitcher.Main.TexturePart;
+
+/**
+ * The ctm methods stitched textures can be laid out with.
+ * Except for {@link #COMPACT}, ctm textures are sheets of tiles as big as the regular texture, numbered row by row
+ */
+final class CtmLayouts {
+
+    /**
+     * Quarters of the regular texture & a ctm texture of 4 tiles: edgeless, vertical, horizontal & corner-only.
+     * See {@link TexturePart}
+     */
+    static final CtmLayout COMPACT = new Compact();
+
+    /**
+     * 47 tiles, one for every combination of connected sides & corners, in a 12x4 sheet
+     */
+    static final CtmLayout FULL = new SheetLayout("ctm", 47) {
+        @Override
+        int getTile(Grid grid, int x, int y, int columns, int tiles) {
+            return getFullTile(grid, x, y);
+        }
+    };
+
+    /**
+     * 4 tiles connecting blocks sideways: left end, middle, right end & unconnected
+     */
+    static final CtmLayout HORIZONTAL = new SheetLayout("horizontal", 4) {
+        @Override
+        int getTile(Grid grid, int x, int y, int columns, int tiles) {
+            return getLineTile(grid.isBlock(x - 1, y), grid.isBlock(x + 1, y));
+        }
+    };
+
+    /**
+     * 4 tiles connecting blocks upwards: bottom end, middle, top end & unconnected
+     */
+    static final CtmLayout VERTICAL = new SheetLayout("vertical", 4) {
+        @Override
+        int getTile(Grid grid, int x, int y, int columns, int tiles) {
+            return getLineTile(grid.isBlock(x, y + 1), grid.isBlock(x, y - 1));
+        }
+    };
+
+    /**
+     * A single big texture spread over the grid, repeating every sheet width & height
+     */
+    static final CtmLayout PATTERN = new SheetLayout("pattern", 1) {
+        @Override
+        int getTile(Grid grid, int x, int y, int columns, int tiles) {
+            return x % columns + y % (tiles / columns) * columns;
+        }
+    };
+
+    /**
+     * A random tile for every block. The same grid position always gets the same tile, so previews don't flicker
+     */
+    static final CtmLayout RANDOM = new SheetLayout("random", 1) {
+        @Override
+        int getTile(Grid grid, int x, int y, int columns, int tiles) {
+            int hash = x * 0x9E3779B1 + y * 0x85EBCA6B;
+            hash ^= hash >>> 15;
+            hash *= 0x2C1B3C6D;
+            hash ^= hash >>> 12;
+            return Math.floorMod(hash, tiles);
+        }
+    };
+
+    private static final CtmLayout[] LAYOUTS = {COMPACT, FULL, HORIZONTAL, VERTICAL, PATTERN, RANDOM};
+
+    private CtmLayouts() {}
+
+    /**
+     * @param name The name of a layout, ignoring case
+     * @return The layout, or null if there is none with that name
+     */
+    static CtmLayout byName(String name) {
+        for (CtmLayout L : LAYOUTS) {
+            if (L.getName().equalsIgnoreCase(name))
+                return L;
+        }
+        return null;
+    }
+
+    /**
+     * @return The names of all layouts, separated by '|'
+     */
+    static String getNames() {
+        StringBuilder names = new StringBuilder();
+        for (CtmLayout L : LAYOUTS)
+            names.append(names.length() == 0 ? "" : "|").append(L.getName());
+        return names.toString();
+    }
+
+    /**
+     * Compiles the copies for a texture without ctm, which is repeated for every block
+     *
+     * @param tileSize The width of the regular texture
+     * @param grid The blocks to stitch
+     * @return The copy plan
+     */
+    static CopyPlan compilePlain(int tileSize, Grid grid) {
+        CopyPlan plan = new CopyPlan(tileSize, 0, 0, grid.getColumns() * tileSize, grid.getRows() * tileSize);
+
+        for (int y = 0; y < grid.getRows(); y++) {
+            for (int x = 0; x < grid.getColumns(); x++) {
+                if (grid.isBlock(x, y))
+                    plan.add(CopyPlan.REGULAR, 0, 0, x * tileSize, y * tileSize, tileSize);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @param first Whether the block is connected at the start of the line, to the left or below
+     * @param second Whether the block is connected at the end of the line, to the right or above
+     */
+    private static int getLineTile(boolean first, boolean second) {
+        if (first) return second ? 1 : 2;
+        return second ? 0 : 3;
+    }
+
+    private static int getFullTile(Grid grid, int x, int y) {
+        boolean left = grid.isBlock(x - 1, y), right = grid.isBlock(x + 1, y);
+        boolean up = grid.isBlock(x, y - 1), down = grid.isBlock(x, y + 1);
+
+        //Tiles with only sides connected, in the first 4 columns of the sheet
+        int sides = (left ? 1 : 0) | (right ? 2 : 0) | (up ? 4 : 0) | (down ? 8 : 0);
+        int tile = new int[]{0, 3, 1, 2, 36, 39, 37, 38, 12, 15, 13, 14, 24, 27, 25, 26}[sides];
+
+        //An inner corner shows where both sides next to a corner are connected, but the diagonal block is missing
+        boolean tl = !grid.isBlock(x - 1, y - 1), tr = !grid.isBlock(x + 1, y - 1);
+        boolean bl = !grid.isBlock(x - 1, y + 1), br = !grid.isBlock(x + 1, y + 1);
+
+        switch (tile) {
+            case 13: return br ? 4 : tile;
+            case 15: return bl ? 5 : tile;
+            case 37: return tr ? 16 : tile;
+            case 39: return tl ? 17 : tile;
+            case 14: return bl && br ? 7 : bl ? 31 : br ? 29 : tile;
+            case 25: return tr && br ? 6 : br ? 30 : tr ? 28 : tile;
+            case 27: return tl && bl ? 19 : bl ? 41 : tl ? 43 : tile;
+            case 38: return tl && tr ? 18 : tl ? 40 : tr ? 42 : tile;
+            case 26:
+                int corners = (tl ? 1 : 0) | (tr ? 2 : 0) | (bl ? 4 : 0) | (br ? 8 : 0);
+                return new int[]{26, 45, 44, 22, 33, 23, 35, 9, 32, 34, 10, 21, 11, 8, 20, 46}[corners];
+            default: return tile;
+        }
+    }
+
+    /**
+     * Builds every block from 4 quarters, each picked by the blocks next to that quarter's corner
+     */
+    private static final class Compact implements CtmLayout {
+        private static final int REG = 0, NON = 1, VER = 2, HOR = 3, COR = 4;
+
+        @Override
+        public String getName() {
+            return "compact";
+        }
+
+        @Override
+        public String validate(int tileSize, int frameCount, int ctmWidth, int ctmHeight) {
+            if (Main.notPowerOfTwo(ctmWidth) || Main.notPowerOfTwo(ctmHeight))
+                return "Width/Height of ctm image isn't a power of 2";
+
+            if (frameCount > 1 && ctmHeight / ctmWidth != frameCount)
+                //Different amount of animated frames for regular and ctm texture
+                return "Regular & ctm texture have differing amount of frames";
+
+            if (ctmWidth != tileSize * 2)
+                return "Width of ctm image has to be twice the width of the regular image";
+
+            if (ctmHeight < ctmWidth)
+                return "Height of ctm image is smaller than its width";
+
+            return null;
+        }
+
+        @Override
+        public CopyPlan compile(int tileSize, int ctmWidth, int ctmFrameHeight, Grid grid) {
+            int pSize = tileSize / 2;
+            CopyPlan plan = new CopyPlan(tileSize, ctmWidth, ctmFrameHeight,
+                                         grid.getColumns() * tileSize, grid.getRows() * tileSize);
+
+            for (int y = 0; y < grid.getRows(); y++) {
+                for (int x = 0; x < grid.getColumns(); x++) {
+                    if (!grid.isBlock(x, y)) continue;
+
+                    for (int quarter = 0; quarter < 4; quarter++) {
+                        int qx = quarter & 1, qy = quarter >> 1;
+                        int dx = qx == 0 ? -1 : 1, dy = qy == 0 ? -1 : 1;
+
+                        boolean horizontal = grid.isBlock(x + dx, y), vertical = grid.isBlock(x, y + dy);
+                        int kind;
+                        if (horizontal && vertical) kind = grid.isBlock(x + dx, y + dy) ? NON : COR;
+                        else if (horizontal) kind = HOR;
+                        else if (vertical) kind = VER;
+                        else kind = REG;
+
+                        //TexturePart is ordered by kind, then quarter
+                        TexturePart part = TexturePart.values()[kind * 4 + quarter];
+                        plan.add(part.isCtm() ? CopyPlan.CTM : CopyPlan.REGULAR,
+                                 part.getSourceX(pSize), part.getSourceY(pSize),
+                                 x * tileSize + qx * pSize, y * tileSize + qy * pSize, pSize);
+                    }
+                }
+            }
+            return plan;
+        }
+    }
+
+    /**
+     * Picks a whole tile of a sheet for every block
+     */
+    private abstract static class SheetLayout implements CtmLayout {
+        private final String name;
+        private final int minTiles;
+
+        /**
+         * @param name The name of the method
+         * @param minTiles The amount of tiles a sheet needs at least
+         */
+        SheetLayout(String name, int minTiles) {
+            this.name = name;
+            this.minTiles = minTiles;
+        }
+
+        /**
+         * @param grid The blocks to stitch
+         * @param x The column of the block
+         * @param y The row of the block
+         * @param columns The width of the sheet, in tiles
+         * @param tiles The amount of tiles in the sheet, which is a multiple of columns
+         * @return The tile for the block
+         */
+        abstract int getTile(Grid grid, int x, int y, int columns, int tiles);
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String validate(int tileSize, int frameCount, int ctmWidth, int ctmHeight) {
+            if (ctmHeight % frameCount != 0)
+                return "Regular & ctm texture have differing amount of frames";
+
+            if (ctmWidth % tileSize != 0 || (ctmHeight / frameCount) % tileSize != 0)
+                return "Width/Height of ctm image isn't a multiple of the width of the regular image";
+
+            int tiles = (ctmWidth / tileSize) * (ctmHeight / frameCount / tileSize);
+            if (tiles < minTiles)
+                return "Ctm image has " + tiles + " tile(s), the " + name + " method needs " + minTiles;
+
+            return null;
+        }
+
+        @Override
+        public CopyPlan compile(int tileSize, int ctmWidth, int ctmFrameHeight, Grid grid) {
+            int columns = ctmWidth / tileSize, tiles = columns * (ctmFrameHeight / tileSize);
+            CopyPlan plan = new CopyPlan(tileSize, ctmWidth, ctmFrameHeight,
+                                         grid.getColumns() * tileSize, grid.getRows() * tileSize);
+
+            for (int y = 0; y < grid.getRows(); y++) {
+                for (int x = 0; x < grid.getColumns(); x++) {
+                    if (!grid.isBlock(x, y)) continue;
+
+                    int tile = getTile(grid, x, y, columns, tiles);
+                    plan.add(CopyPlan.CTM, (tile % columns) * tileSize, (tile / columns) * tileSize,
+                             x * tileSize, y * tileSize, tileSize);
+                }
+            }
+            return plan;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * The frames of an incrementally written texture: a hash of the input pixels of every frame, and where its
+ * compressed rows are in the png, kept in a .frames file next to it.
+ * When only a few frames of an animation are edited, only those are stitched & compressed again.
+ * The others are copied from the previous png as they are
+ */
+final class FrameIndex {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L, PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+    /**
+     * Writes the rows of a single frame
+     */
+    private interface FrameWriter {
+        void write(PngWriter writer, int frame) throws IOException;
+    }
+
+    private final String key, png;
+    private final long[] hashes;
+    private final List<PngWriter.Frame> frames;
+
+    /**
+     * @param key What the frames depend on besides their inputs, see {@link #getKey}
+     * @param png The SHA-256 hash of the png the index belongs to
+     * @param hashes The hash of the input pixels of every frame
+     * @param frames Where every frame is in the png
+     */
+    private FrameIndex(String key, String png, long[] hashes, List<PngWriter.Frame> frames) {
+        this.key = key;
+        this.png = png;
+        this.hashes = hashes;
+        this.frames = frames;
+    }
+
+    /**
+     * @param output A stitched texture
+     * @return The index belonging to the stitched texture, which might not exist
+     */
+    static File getFile(File output) {
+        return new File(output.getAbsoluteFile().getParentFile(), output.getName() + ".frames");
+    }
+
+    /**
+     * @param plan The copy plan the texture is stitched with
+     * @param composite The tint & overlay drawn onto the texture, or null if there are none
+     * @param settings How the png is encoded
+     * @return What the stitched frames depend on besides their input pixels. Frames are only copied between pngs
+     *         with the same key
+     */
+    static String getKey(CopyPlan plan, Composite composite, PngWriter.Settings settings) {
+        long layout = hash(0, plan.getCopies(), 0, plan.getCount() * 4);
+        return Main.VERSION + ",frame=" + plan.getWidth() + "x" + plan.getHeight()
+                + ",sources=" + plan.getSourceFrameSize(CopyPlan.REGULAR) + ":" + plan.getSourceFrameSize(CopyPlan.CTM)
+                + ",layout=" + Long.toHexString(layout)
+                + ",deflate=" + settings.deflateLevel + ",filter=" + settings.filter
+                + (composite == null ? "" : "," + composite);
+    }
+
+    /**
+     * @param plan The copy plan the texture is stitched with
+     * @param regular The pixels of the regular texture
+     * @param ctm The pixels of the ctm texture, or null if none is used
+     * @param compositor The overlay drawn onto every frame, or null if there is none
+     * @param frameCount The amount of frames the texture has
+     * @return The hash of the pixels every frame is stitched from
+     */
+    static long[] hashFrames(CopyPlan plan, int[] regular, int[] ctm, Compositor compositor, int frameCount) {
+        long[] hashes = new long[frameCount];
+
+        IntStream frames = IntStream.range(0, frameCount);
+        (frameCount > 1 ? frames.parallel() : frames)
+                .forEach(i -> {
+                    long hash = hashFrame(0, plan, regular, ctm, i);
+                    hashes[i] = compositor == null ? hash : compositor.hashFrame(hash, i);
+                });
+        return hashes;
+    }
+
+    /**
+     * Adds the rows of a single frame the copy plan reads to a hash. Rows it doesn't read can't change the frame
+     *
+     * @param hash The hash so far
+     * @param plan The copy plan the texture is stitched with
+     * @param regular The pixels of the regular texture
+     * @param ctm The pixels of the ctm texture, or null if none is used
+     * @param frame The frame of the textures
+     * @return The new hash
+     */
+    static long hashFrame(long hash, CopyPlan plan, int[] regular, int[] ctm, int frame) {
+        hash = hash(hash, regular, frame * plan.getSourceFrameSize(CopyPlan.REGULAR),
+                    plan.getFrameRows(CopyPlan.REGULAR) * plan.getSourceWidth(CopyPlan.REGULAR));
+        if (ctm == null) return hash;
+        return hash(hash, ctm, frame * plan.getSourceFrameSize(CopyPlan.CTM),
+                    plan.getFrameRows(CopyPlan.CTM) * plan.getSourceWidth(CopyPlan.CTM));
+    }
+
+    /**
+     * A fast 64-bit hash in the style of xxHash. Good enough to tell edited frames apart, not meant to be secure
+     */
+    private static long hash(long hash, int[] values, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++)
+            hash = Long.rotateLeft(hash + (values[i] & 0xFFFFFFFFL) * PRIME2, 31) * PRIME1;
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        return hash ^ hash >>> 29;
+    }
+
+    /**
+     * Stitches a validated texture into a png incrementally, one frame at a time. Frames whose input pixels are the
+     * same as when the png was last written are copied from it, only the others are stitched & compressed
+     *
+     * @param regular The regular texture
+     * @param ctm The ctm texture, or null if none is used
+     * @param frameCount The amount of frames the texture has
+     * @param file The file the stitched texture is written to
+     * @param settings How the png is encoded
+     * @param plan The copy plan stitching a single frame
+     * @param compositor The tint & overlay drawn onto every frame, or null if there are none
+     * @param metrics Where the time spent stitching & encoding is added, or null if it isn't recorded
+     * @return Whether the stitched texture was written
+     */
+    static boolean write(BufferedImage regular, BufferedImage ctm, int frameCount, File file,
+                         PngWriter.Settings settings, CopyPlan plan, Compositor compositor, JobMetrics metrics) {
+        int[] regularPixels = ImageAccess.getPixels(ImageAccess.normalize(regular));
+        int[] ctmPixels = ctm == null ? null : ImageAccess.getPixels(ImageAccess.normalize(ctm));
+        long start = System.nanoTime();
+
+        long[] hashes = hashFrames(plan, regularPixels, ctmPixels, compositor, frameCount);
+        String key = getKey(plan, compositor == null ? null : compositor.getComposite(), settings);
+
+        int[] frame = BufferPool.get().acquire(plan.getWidth() * plan.getHeight());
+        if (!plan.coversFrame()) Arrays.fill(frame, 0);
+        long[] stitchNanos = new long[1];
+
+        try {
+            boolean written = write(file, hashes, key, settings, plan, (writer, i) -> {
+                long frameStart = System.nanoTime();
+                StitchKernel.stitchFrame(plan, regularPixels, ctmPixels, i, frame, 0);
+                if (compositor != null) compositor.apply(frame, 0, i);
+                stitchNanos[0] += System.nanoTime() - frameStart;
+
+                writer.writeRows(frame, 0, plan.getHeight());
+            }, metrics);
+
+            if (metrics != null) {
+                metrics.stitchNanos += stitchNanos[0];
+                metrics.encodeNanos += System.nanoTime() - start - stitchNanos[0];
+                metrics.buffer(frame.length);
+            }
+            return written;
+        } finally {
+            BufferPool.get().release(frame);
+        }
+    }
+
+    /**
+     * Writes an already stitched texture into a png incrementally. Frames whose input pixels are the same as when the
+     * png was last written are copied from it, only the others are compressed
+     *
+     * @param image The stitched texture
+     * @param hashes The hash of the input pixels of every frame, see {@link #hashFrames}
+     * @param key What the frames depend on besides their inputs, see {@link #getKey}
+     * @param file The file the stitched texture is written to
+     * @param settings How the png is encoded
+     * @param plan The copy plan the texture was stitched with
+     * @param metrics Where the amount of copied frames is recorded, or null if it isn't recorded
+     * @return Whether the stitched texture was written
+     */
+    static boolean write(BufferedImage image, long[] hashes, String key, File file, PngWriter.Settings settings,
+                         CopyPlan plan, JobMetrics metrics) {
+        int[] pixels = ImageAccess.getPixels(ImageAccess.normalize(image));
+        int frameSize = plan.getWidth() * plan.getHeight();
+
+        return write(file, hashes, key, settings, plan,
+                     (writer, i) -> writer.writeRows(pixels, i * frameSize, plan.getHeight()), metrics);
+    }
+
+    private static boolean write(File file, long[] hashes, String key, PngWriter.Settings settings, CopyPlan plan,
+                                 FrameWriter frames, JobMetrics metrics) {
+        //Frames are only copied from the exact png the index was written for, not one changed since
+        FrameIndex previous = read(file);
+        byte[] old = null;
+        if (previous != null && previous.key.equals(key) && previous.hashes.length == hashes.length) {
+            try {
+                old = Files.readAllBytes(file.toPath());
+                if (!Hashes.toHex(Hashes.newDigest().digest(old)).equals(previous.png)) old = null;
+            } catch (IOException e) {
+                old = null;
+            }
+        }
+
+        //Written under a temporary name first, so a failed write never leaves a broken png behind
+        Path temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp").toPath();
+        try {
+            MessageDigest digest = Hashes.newDigest();
+            int copied = 0;
+
+            PngWriter writer = new PngWriter(
+                    new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)), digest),
+                    plan.getWidth(), plan.getHeight() * hashes.length, settings, true);
+            try (writer) {
+                for (int i = 0; i < hashes.length; i++) {
+                    if (old != null && previous.hashes[i] == hashes[i]) {
+                        writer.copyFrame(old, previous.frames.get(i));
+                        copied++;
+                    } else {
+                        frames.write(writer, i);
+                        writer.endFrame();
+                    }
+                }
+            }
+            //Only complete once closed, which ends the last frame
+            List<PngWriter.Frame> written = writer.getFrames();
+
+            Files.move(temp, file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+            temp = null;
+            if (metrics != null) metrics.framesCopied = copied;
+
+            return new FrameIndex(key, Hashes.toHex(digest.digest()), hashes, written).write(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (temp != null) Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param output A stitched texture
+     * @return The index of the stitched texture, or null if it has none or it isn't valid
+     */
+    private static FrameIndex read(File output) {
+        File file = getFile(output);
+        if (!file.isFile()) return null;
+
+        try {
+            Map<?, ?> root = (Map<?, ?>) Json.parse(new String(Files.readAllBytes(file.toPath()),
+                                                               StandardCharsets.UTF_8));
+            List<?> list = (List<?>) root.get("frames");
+
+            long[] hashes = new long[list.size()];
+            List<PngWriter.Frame> frames = new ArrayList<>(list.size());
+            for (int i = 0; i < hashes.length; i++) {
+                Map<?, ?> frame = (Map<?, ?>) list.get(i);
+                hashes[i] = Long.parseUnsignedLong((String) frame.get("hash"), 16);
+                frames.add(new PngWriter.Frame((Long) frame.get("offset"), (Long) frame.get("length"),
+                                               ((Long) frame.get("adler")).intValue(), (Long) frame.get("size")));
+            }
+            return new FrameIndex((String) root.get("key"), (String) root.get("png"), hashes, frames);
+        } catch (IOException | IllegalArgumentException | ClassCastException | NullPointerException e) {
+            //A broken index only means every frame is written again
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index next to the stitched texture
+     *
+     * @param output The stitched texture
+     * @return Whether the index was written
+     */
+    private boolean write(File output) {
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("key", key);
+        root.put("png", png);
+
+        List<Object> list = new ArrayList<>(frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            PngWriter.Frame frame = frames.get(i);
+
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("hash", Long.toHexString(hashes[i]));
+            json.put("offset", frame.offset);
+            json.put("length", frame.length);
+            json.put("adler", frame.adler & 0xFFFFFFFFL);
+            json.put("size", frame.size);
+            list.add(json);
+        }
+        root.put("frames", list);
+
+        try {
+            Files.write(getFile(output).toPath(), Json.write(root).getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,118 @@
+package com.Noobfortress.CTM_Stitcher;
+
+/**
+ * The arrangement of blocks a stitched texture previews. Blocks connect to the blocks next to them, so a grid
+ * with holes shows inner corners & edges that a full grid never does
+ */
+final class Grid {
+
+    /**
+     * A full 3x3 of blocks, the arrangement stitched textures always had
+     */
+    static final Grid DEFAULT = new Grid(3, 3, null);
+
+    private final int columns, rows;
+    private final boolean[] blocks;
+
+    /**
+     * @param blocks Whether there is a block at each position, row by row, or null if the grid is full
+     */
+    private Grid(int columns, int rows, boolean[] blocks) {
+        this.columns = columns;
+        this.rows = rows;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Reads a grid, either as "NxM" for a full grid N blocks wide & M blocks high, or as rows of blocks separated
+     * by commas, with '1' or '#' for a block and '0' or '.' for a hole: "111,101,111" is a ring of 8 blocks
+     *
+     * @param text The grid
+     * @return The grid
+     * @throws IllegalArgumentException If the text isn't a valid grid
+     */
+    static Grid parse(String text) {
+        String lower = text.trim().toLowerCase();
+
+        if (lower.matches("\\d+x\\d+")) {
+            int x = lower.indexOf('x');
+            try {
+                return new Grid(checkSize(Integer.parseInt(lower.substring(0, x))),
+                                checkSize(Integer.parseInt(lower.substring(x + 1))), null);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Grid is too big: " + text);
+            }
+        }
+
+        String[] lines = lower.split(",");
+        int columns = checkSize(lines[0].length()), rows = checkSize(lines.length);
+        boolean[] blocks = new boolean[columns * rows];
+
+        for (int y = 0; y < rows; y++) {
+            if (lines[y].length() != columns)
+                throw new IllegalArgumentException("Every row of the grid has to be " + columns + " blocks wide");
+
+            for (int x = 0; x < columns; x++) {
+                char c = lines[y].charAt(x);
+                if (c != '1' && c != '#' && c != '0' && c != '.')
+                    throw new IllegalArgumentException("Grid has to be \"NxM\" or rows of '1' & '0', got: " + text);
+
+                blocks[y * columns + x] = c == '1' || c == '#';
+            }
+        }
+        return new Grid(columns, rows, blocks);
+    }
+
+    private static int checkSize(int size) {
+        if (size < 1 || size > 64)
+            throw new IllegalArgumentException("Grids have to be between 1 and 64 blocks wide & high");
+        return size;
+    }
+
+    /**
+     * @return The width of the grid, in blocks
+     */
+    int getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return The height of the grid, in blocks
+     */
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * @param x The column of the position, which may lie outside the grid
+     * @param y The row of the position, which may lie outside the grid
+     * @return Whether there is a block at the given position
+     */
+    boolean isBlock(int x, int y) {
+        if (x < 0 || y < 0 || x >= columns || y >= rows) return false;
+        return blocks == null || blocks[y * columns + x];
+    }
+
+    /**
+     * @return The size of the grid, like "3x3"
+     */
+    String getSize() {
+        return columns + "x" + rows;
+    }
+
+    /**
+     * @return The size of the grid, followed by its rows if it has holes. Unique for every grid
+     */
+    @Override
+    public String toString() {
+        if (blocks == null) return getSize();
+
+        StringBuilder text = new StringBuilder(getSize()).append(':');
+        for (int y = 0; y < rows; y++) {
+            if (y > 0) text.append(',');
+            for (int x = 0; x < columns; x++)
+                text.append(isBlock(x, y) ? '1' : '0');
+        }
+        return text.toString();
+    }
+}
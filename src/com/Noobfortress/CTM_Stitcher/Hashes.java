@@ -0,0 +1,75 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hashes, used to tell whether a file really changed rather than just being saved again
+ */
+final class Hashes {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Hashes() {}
+
+    /**
+     * @return A new SHA-256 digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported by every JVM", e);
+        }
+    }
+
+    /**
+     * @param file A file
+     * @return The SHA-256 hash of the file's contents, or null if the file doesn't exist
+     * @throws IOException If the file couldn't be read
+     */
+    static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        if (!update(digest, file)) return null;
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Feeds the contents of a file to a digest
+     *
+     * @param digest The digest
+     * @param file The file
+     * @return Whether the file exists
+     * @throws IOException If the file couldn't be read
+     */
+    static boolean update(MessageDigest digest, Path file) throws IOException {
+        byte[] buffer = new byte[8192];
+
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                digest.update(buffer, 0, n);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param bytes The bytes
+     * @return The bytes as lower case hexadecimal
+     */
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,98 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+
+/**
+ * Gives the stitcher direct access to the pixels of images.
+ * Images are normalized once to packed ARGB, after which their pixels are read & written without any copies
+ * or colour model conversions
+ */
+final class ImageAccess {
+
+    private ImageAccess() {}
+
+    /**
+     * Converts an image to packed ARGB, unless it already is. Indexed, gray & 3BYTE_BGR pngs are converted
+     * through {@link BufferedImage#getRGB}, so they give the same colours as before
+     *
+     * @param img The image
+     * @return The image, as {@link BufferedImage#TYPE_INT_ARGB} with one int per pixel and no padding.
+     *         Converted images use a buffer of the current thread's {@link BufferPool}
+     */
+    static BufferedImage normalize(BufferedImage img) {
+        if (isPackedArgb(img)) return img;
+
+        int width = img.getWidth(), height = img.getHeight();
+        BufferedImage argb = wrap(BufferPool.get().acquire(width * height), width, height);
+
+        //Converted straight into the new image's pixels, without an intermediate array
+        img.getRGB(0, 0, width, height, getPixels(argb), 0, width);
+
+        return argb;
+    }
+
+    /**
+     * @param pixels Packed ARGB pixels, row by row, exactly width * height long
+     * @param width The width of the image
+     * @param height The height of the image
+     * @return A {@link BufferedImage#TYPE_INT_ARGB} image using the given pixels, without copying them
+     */
+    static BufferedImage wrap(int[] pixels, int width, int height) {
+        WritableRaster raster = Raster.createPackedRaster(
+                new DataBufferInt(pixels, pixels.length), width, height, width,
+                new int[]{0xFF0000, 0xFF00, 0xFF, 0xFF000000}, null);
+        return new BufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+    }
+
+    /**
+     * Gives the pixels of a normalized image back to the current thread's {@link BufferPool}.
+     * The image may not be used anymore afterwards
+     *
+     * @param img A normalized image, or null
+     */
+    static void release(BufferedImage img) {
+        release(img, BufferPool.get());
+    }
+
+    /**
+     * Gives the pixels of a normalized image back to the given pool, which may belong to another thread.
+     * The image may not be used anymore afterwards
+     *
+     * @param img A normalized image, or null
+     * @param pool The pool of the thread which normalized or created the image
+     */
+    static void release(BufferedImage img, BufferPool pool) {
+        if (img != null && isPackedArgb(img)) pool.release(getPixels(img));
+    }
+
+    /**
+     * @param img An image, which has to be normalized
+     * @return The pixels of the image, row by row. Changes to the array are changes to the image
+     * @see #normalize(BufferedImage)
+     */
+    static int[] getPixels(BufferedImage img) {
+        return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @param img An image
+     * @return Whether the pixels of the image are stored as one packed ARGB int each, row after row, without padding
+     */
+    static boolean isPackedArgb(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+
+        return img.getType() == TYPE_INT_ARGB
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getDataBuffer().getOffset() == 0
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == img.getWidth();
+    }
+}
@@ -0,0 +1,58 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What a single run of a {@link TextureJob} spent its time & memory on
+ */
+final class JobMetrics {
+
+    final String name;
+
+    //Stages the job never got to, like decoding a cached or invalid texture, stay 0
+    long validateNanos, decodeNanos, stitchNanos, encodeNanos, totalNanos;
+    long bytesRead, bytesWritten, pixelsCopied, peakBufferBytes;
+    //Frames copied from the previous png by incremental writes, see FrameIndex
+    int framesCopied;
+    boolean cached;
+    String error;
+
+    /**
+     * @param name How the texture is called in summaries
+     */
+    JobMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Keeps track of the biggest pixel buffer the job needed
+     *
+     * @param pixels The amount of pixels in a buffer, at 4 bytes each
+     */
+    void buffer(long pixels) {
+        peakBufferBytes = Math.max(peakBufferBytes, pixels * 4);
+    }
+
+    /**
+     * @return The metrics as a json object, with times in milliseconds
+     */
+    Map<String, Object> toJson() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("name", name);
+        json.put("ok", error == null);
+        if (error != null) json.put("error", error);
+        json.put("cached", cached);
+        json.put("validateMs", validateNanos / 1e6);
+        json.put("decodeMs", decodeNanos / 1e6);
+        json.put("stitchMs", stitchNanos / 1e6);
+        json.put("encodeMs", encodeNanos / 1e6);
+        json.put("totalMs", totalNanos / 1e6);
+        json.put("bytesRead", bytesRead);
+        json.put("bytesWritten", bytesWritten);
+        json.put("pixelsCopied", pixelsCopied);
+        json.put("framesCopied", framesCopied);
+        json.put("peakBufferBytes", peakBufferBytes);
+        return json;
+    }
+}
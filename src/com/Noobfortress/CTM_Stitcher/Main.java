@@ -1,33 +1,156 @@
 package com.Noobfortress.CTM_Stitcher;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
 import java.util.Scanner;
-
-import static com.Noobfortress.CTM_Stitcher.Main.TexturePart.getPartForCoords;
-import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
 
 public class Main {
 
+    /**
+     * The version of the tool. Part of every cache key, so it has to change whenever stitched output changes
+     */
+    static final String VERSION = "1.1.0";
+
     private static File regular, ctm, outputDir;
+    private static PngWriter.Settings pngSettings;
+    private static OutputCache cache;
+    private static Preview preview = Preview.DEFAULT;
+    private static Metrics metrics;
+    private static Atlas atlas;
+    private static Composite composite;
+    private static Pipeline pipeline;
+    private static int threads;
+
+    //Every layout but the compact one precedes the grid in output names, like "glass-ctm-5x4.png"
+    private static final Pattern SHEET_OUTPUT = Pattern.compile(
+            ".*-(" + Arrays.stream(CtmLayouts.getNames().split("\\|"))
+                           .filter(name -> !name.equals(CtmLayouts.COMPACT.getName()))
+                           .collect(Collectors.joining("|"))
+                    + ")-\\d+x\\d+(-[01.]+)?\\.png");
 
     public static void main(String[] args) {
         boolean useCtm;
 
         if (args.length != 0) {
-            System.out.println("Command line arguments found. Using those for texture location(s)");
-
             List<String> arguments = Arrays.asList(args);
 
+            //Replies of the stitch server & check reports go to stdout, so nothing else may be printed there
+            if (!arguments.contains("-serve") && !arguments.contains("-check"))
+                System.out.println("Command line arguments found. Using those for texture location(s)");
+
+            String serve = null;
+            try {
+                pngSettings = getPngSettings(args, arguments);
+                cache = getCache(args, arguments);
+                preview = getPreview(args, arguments);
+                composite = getComposite(args, arguments);
+                if (arguments.contains("-metrics"))
+                    metrics = new Metrics(getOutputPath(getArgument(args, arguments, "-metrics")));
+                atlas = getAtlas(args, arguments);
+                pipeline = getPipeline(args, arguments);
+                threads = getThreads(args, arguments);
+                if (arguments.contains("-serve")) serve = getArgument(args, arguments, "-serve");
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                if (arguments.contains("-check")) System.exit(2);
+                return;
+            }
+
+            if (serve != null) {
+                StitchServer server = new StitchServer(pngSettings, cache, preview, composite, metrics);
+
+                if (serve.equalsIgnoreCase("stdin")) {
+                    server.serveStdin();
+                    return;
+                }
+
+                try {
+                    server.serveSocket(Integer.parseInt(serve));
+                } catch (NumberFormatException e) {
+                    System.out.println("Please select either \"stdin\" or a port to serve on");
+                }
+                return;
+            }
+
+            if (arguments.contains("-check")) {
+                File dir;
+                try {
+                    dir = getOutputPath(getArgument(args, arguments, "-check"));
+                } catch (IllegalArgumentException e) {
+                    System.out.println(e.getMessage());
+                    System.exit(2);
+                    return;
+                }
+
+                if (!dir.isDirectory()) {
+                    System.out.println("Not a directory: " + dir);
+                    System.exit(2);
+                }
+
+                //Exits with 1 if any texture has a problem, so pack builds can fail on it
+                boolean ok = new BatchStitcher(dir, null, pngSettings, null, preview, composite, null, null).check();
+                System.exit(ok ? 0 : 1);
+            }
+
+            if (arguments.contains("-batch")) {
+                File dir = getCustomDir(args[arguments.indexOf("-batch") + 1]);
+                File batchOutputDir = arguments.contains("-outputDir")
+                        ? getCustomDir(args[arguments.indexOf("-outputDir") + 1])
+                        : null;
+
+                if (dir == null || (arguments.contains("-outputDir") && batchOutputDir == null)) return;
+
+                BatchStitcher stitcher = new BatchStitcher(dir, batchOutputDir, pngSettings, cache, preview,
+                                                           composite, pipeline, metrics, threads);
+                if (atlas != null) {
+                    stitcher.stitchAtlas(atlas);
+                    if (arguments.contains("-watch")) System.out.println("Watching isn't supported for atlases");
+                    return;
+                }
+                stitcher.run();
+
+                if (arguments.contains("-watch")) {
+                    List<TextureJob> jobs = stitcher.findJobs();
+                    if (jobs != null) new Watcher(stitcher, jobs, dir).run();
+                }
+                return;
+            }
+
             if (!arguments.contains("-regular")) {
                 System.out.println("Please select a regular texture");
                 System.out.println("Format: -regular <file path> [-ctm <file path>] [-outputDir <file path>]");
+                System.out.println("        -batch <directory> [-outputDir <file path>]");
+                System.out.println("        -batch <directory> -atlas <file path> [-atlasSize <pixels>]");
+                System.out.println("        -serve <stdin|port>");
+                System.out.println("        -check <directory>");
+                System.out.println("Options: -stream [-deflate <0-9>] [-filter <none|sub|up|average|paeth|adaptive>]"
+                                           + " [-incremental]");
+                System.out.println("         -layout <" + CtmLayouts.getNames() + "> [-grid <NxM|rows like 111,101,111>]");
+                System.out.println("         -tint <RRGGBB> [-overlay <file path> [-overlayCtm <file path>]]"
+                                           + " [-blend <over|premultiplied>]");
+                System.out.println("         -pipeline <auto|decode,stitch,encode threads> [-queue <textures>]");
+                System.out.println("         -threads <textures at once>");
+                System.out.println("         -watch");
+                System.out.println("         -cache <directory> [-cacheSize <MB>]");
+                System.out.println("         -metrics <file.json|file.prom>");
             }
             regular = getFileTexture(args[arguments.indexOf("-regular") + 1]);
 
@@ -39,6 +162,20 @@ public class Main {
 
             if (arguments.contains("-outputDir"))
                 outputDir = getCustomDir(args[arguments.indexOf("-outputDir") + 1]);
+
+            if (arguments.contains("-watch") || metrics != null) {
+                if (regular == null || (useCtm && ctm == null) || outputDir == null) return;
+
+                //Stitched like a batch of one, so the texture is timed like batch jobs,
+                //and stitched again whenever its inputs change
+                BatchStitcher stitcher = new BatchStitcher(regular.getParentFile(), outputDir, pngSettings, cache,
+                                                           preview, composite, pipeline, metrics, threads);
+                List<TextureJob> jobs = Collections.singletonList(stitcher.createJob(regular, ctm));
+
+                stitcher.stitchAll(jobs);
+                if (arguments.contains("-watch")) new Watcher(stitcher, jobs, null).run();
+                return;
+            }
         } else {
             try(Scanner in = new Scanner(System.in)) {
                 System.out.println("Use a single texture (1), or a normal and a ctm texture (2)");
@@ -59,65 +196,409 @@ public class Main {
 
         if (regular == null || (useCtm && ctm == null) || outputDir == null) return;
 
-        BufferedImage regular = loadImage(Main.regular);
-        Raster rasterRegular = Objects.requireNonNull(regular).getData();
+        //Only the headers are read until the textures are known to be valid
+        PngHeader regularHeader, ctmHeader;
+        McMeta animation;
+        try {
+            regularHeader = PngHeader.read(Main.regular);
+            ctmHeader = useCtm ? PngHeader.read(Main.ctm) : null;
+            animation = McMeta.read(Main.regular);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
 
-        int regularWidth = rasterRegular.getWidth(), regularHeight = rasterRegular.getHeight();
-        
-        if (notPowerOfTwo(regularWidth) || notPowerOfTwo(regularHeight)) {
-            System.out.println("Width/Height of regular image isn't a power of 2");
+        String error = validate(regularHeader, ctmHeader, animation, preview);
+        if (error == null && composite != null) error = composite.validate(regularHeader, ctmHeader);
+        if (error != null) {
+            System.out.println(error);
             return;
         }
 
-        BufferedImage ctm = null;
-        int ctmWidth = 0, ctmHeight = 0;
-        if (useCtm) {
-            ctm = loadImage(Main.ctm);
-            Raster rasterCtm = Objects.requireNonNull(ctm).getData();
+        System.out.println("Stitching texture...");
 
-            ctmWidth = rasterCtm.getWidth();
-            ctmHeight = rasterCtm.getHeight();
+        File output = getOutputFile(Main.regular, outputDir, preview);
 
-            if (notPowerOfTwo(ctmWidth) || notPowerOfTwo(ctmHeight)) {
-                System.out.println("Width/Height of ctm image isn't a power of 2");
+        String key = null;
+        if (cache != null) {
+            try {
+                key = cache.getKey(Main.regular, Main.ctm, preview, composite, pngSettings);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            if (cache.restore(key, output)) {
+                if (animation == null || animation.write(output))
+                    System.out.println("Image copied from cache");
+                System.out.println(cache.getStats());
                 return;
             }
         }
 
-        System.out.println("Stitching texture...");
+        CopyPlan plan = preview.getPlan(regularHeader, ctmHeader);
+        int frameCount = regularHeader.getFrameCount();
 
-        BufferedImage out = new BufferedImage(regularWidth * 3, regularHeight * 3, TYPE_INT_ARGB);
+        BufferedImage regular = loadImage(Main.regular, plan.getSourceRows(CopyPlan.REGULAR, frameCount));
+        BufferedImage ctm = useCtm ? loadImage(Main.ctm, plan.getSourceRows(CopyPlan.CTM, frameCount)) : null;
 
-        if (regularWidth != regularHeight) {
-            //Different width & height implies animated texture
-            //Each frame has to be stitched separately
+        if (regular == null || (useCtm && ctm == null)) return;
 
-            if (useCtm && (regularHeight / regularWidth != ctmHeight / ctmWidth)) {
-                //Different amount of animated frames for regular and ctm texture
-                System.out.println("Regular & ctm texture have differing amount of frames");
-                return;
-            }
+        Compositor compositor = composite == null ? null : composite.load(plan, frameCount);
+        if (composite != null && compositor == null) return;
 
-            for (int frame = 0; frame < regularHeight / regularWidth; frame++) {
-                if (useCtm) {
-                    out = stitchImage(regular, ctm, regularWidth * frame);
-                } else {
-                    out = stitchImage(regular, regularWidth * frame);
-                }
-            }
-        } else {
-            if (useCtm) {
-                out = stitchImage(regular, ctm);
-            } else {
-                out = stitchImage(regular);
+        if (pngSettings != null) {
+            //Frames are written as soon as they're stitched, so the output never is in memory as a whole
+            if (streamImage(regular, ctm, frameCount, output, pngSettings, plan, compositor, null)
+                    && (animation == null || animation.write(output))) {
+                System.out.println("Image created");
+                if (cache != null) storeInCache(key, output);
             }
+            return;
         }
 
+        BufferedImage out = stitch(regular, ctm, frameCount, plan, compositor);
+
         if (out == null)
             return;
 
         System.out.println("Texture stitched. Writing to disk...");
-        writeImage(out);
+        if (writeImage(out, output) && (animation == null || animation.write(output))) {
+            System.out.println("Image created");
+            if (cache != null) storeInCache(key, output);
+        }
+    }
+
+    private static void storeInCache(String key, File output) {
+        cache.store(key, output);
+        System.out.println(cache.getStats());
+    }
+
+    /**
+     * Checks whether the given textures can be stitched, from their headers alone
+     *
+     * @param regular The header of the regular texture
+     * @param ctm The header of the ctm texture, or null if none is used
+     * @param animation The animation settings of the regular texture, or null if it has none
+     * @param preview The preview the textures are stitched into, which decides what a valid ctm texture is
+     * @return A description of the first problem, or null if the textures are valid
+     */
+    static String validate(PngHeader regular, PngHeader ctm, McMeta animation, Preview preview) {
+        List<String> problems = check(regular, ctm, animation, preview);
+        return problems.isEmpty() ? null : problems.get(0);
+    }
+
+    /**
+     * Like {@link #validate}, but keeps going after the first problem
+     *
+     * @return Every problem found, which is empty if the textures are valid
+     */
+    static List<String> check(PngHeader regular, PngHeader ctm, McMeta animation, Preview preview) {
+        List<String> problems = new ArrayList<>();
+        int regularWidth = regular.width, regularHeight = regular.height;
+
+        if (notPowerOfTwo(regularWidth) || notPowerOfTwo(regularHeight))
+            problems.add("Width/Height of regular image isn't a power of 2");
+
+        if (regularHeight < regularWidth)
+            problems.add("Height of regular image is smaller than its width");
+        else if (animation != null) {
+            String error = animation.validate(regularHeight / regularWidth);
+            if (error != null) problems.add(error);
+        }
+
+        //The ctm texture is measured against the regular texture, so it's only checked once that one is valid
+        if (ctm != null && problems.isEmpty()) {
+            String error = preview.validate(regular, ctm);
+            if (error != null) problems.add(error);
+        }
+        return problems;
+    }
+
+    /**
+     * Stitches a validated texture into the default 3x3 preview
+     *
+     * @param regular The regular texture
+     * @param ctm The ctm texture, or null if none is used
+     * @return The stitched texture
+     */
+    static BufferedImage stitch(BufferedImage regular, BufferedImage ctm) {
+        return stitch(regular, ctm, Preview.DEFAULT);
+    }
+
+    /**
+     * Stitches a validated texture. Animated textures have every frame stitched separately,
+     * into its own part of the output
+     *
+     * @param regular The regular texture
+     * @param ctm The ctm texture, or null if none is used
+     * @param preview The preview to stitch
+     * @return The stitched texture
+     */
+    static BufferedImage stitch(BufferedImage regular, BufferedImage ctm, Preview preview) {
+        //Different width & height implies animated texture
+        int frameCount = regular.getHeight() / regular.getWidth();
+
+        return stitch(regular, ctm, frameCount, preview.getPlan(regular, ctm));
+    }
+
+    /**
+     * Stitches a validated texture, of which only the rows the plan reads have to be decoded
+     *
+     * @param regular The regular texture
+     * @param ctm The ctm texture, or null if none is used
+     * @param frameCount The amount of frames the texture has
+     * @param plan The copy plan stitching a single frame
+     * @return The stitched frames, laid out in minecraft's animation format.
+     *         Its pixels come from the current thread's {@link BufferPool}, see {@link ImageAccess#release}
+     */
+    static BufferedImage stitch(BufferedImage regular, BufferedImage ctm, int frameCount, CopyPlan plan) {
+        return stitch(regular, ctm, frameCount, plan, null);
+    }
+
+    /**
+     * Stitches a validated texture & composites every frame right after it's stitched
+     *
+     * @param regular The regular texture
+     * @param ctm The ctm texture, or null if none is used
+     * @param frameCount The amount of frames the texture has
+     * @param plan The copy plan stitching a single frame
+     * @param compositor The tint & overlay drawn onto every frame, or null if there are none
+     * @return The stitched frames, laid out in minecraft's animation format
+     */
+    static BufferedImage stitch(BufferedImage regular, BufferedImage ctm, int frameCount, CopyPlan plan,
+                                Compositor compositor) {
+        int[] outPixels = BufferPool.get().acquire(plan.getWidth() * plan.getHeight() * frameCount);
+        if (!plan.coversFrame()) Arrays.fill(outPixels, 0); //Holes in the grid stay transparent
+
+        BufferedImage out = ImageAccess.wrap(outPixels, plan.getWidth(), plan.getHeight() * frameCount);
+
+        int[] regularPixels = ImageAccess.getPixels(ImageAccess.normalize(regular));
+        int[] ctmPixels = ctm == null ? null : ImageAccess.getPixels(ImageAccess.normalize(ctm));
+
+        //Every frame is written to its own rows of the output, so frames can be stitched independently
+        IntStream frames = IntStream.range(0, frameCount);
+        (frameCount > 1 ? frames.parallel() : frames)
+                .forEach(i -> {
+                    StitchKernel.stitchFrame(plan, regularPixels, ctmPixels, i, outPixels, i);
+                    if (compositor != null) compositor.apply(outPixels, i, i);
+                });
+
+        return out;
+    }
+
+    /**
+     * Reads the options of the streaming png writer. Giving any of -stream, -deflate, -filter or -incremental
+     * selects it
+     *
+     * @return The settings for the streaming png writer, or null if stitched textures are written through ImageIO
+     * @throws IllegalArgumentException If an option has an invalid value
+     */
+    private static PngWriter.Settings getPngSettings(String[] args, List<String> arguments) {
+        if (!arguments.contains("-stream") && !arguments.contains("-deflate") && !arguments.contains("-filter")
+                && !arguments.contains("-incremental"))
+            return null;
+
+        int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+        if (arguments.contains("-deflate")) {
+            String level = getArgument(args, arguments, "-deflate");
+            try {
+                deflateLevel = Integer.parseInt(level);
+            } catch (NumberFormatException e) {
+                deflateLevel = -2;
+            }
+            if (deflateLevel < 0 || deflateLevel > 9)
+                throw new IllegalArgumentException("Deflate level has to be between 0 and 9, got: " + level);
+        }
+
+        PngWriter.Filter filter = PngWriter.Filter.ADAPTIVE;
+        if (arguments.contains("-filter")) {
+            String name = getArgument(args, arguments, "-filter");
+            filter = PngWriter.Filter.byName(name);
+            if (filter == null)
+                throw new IllegalArgumentException("Unknown png filter: " + name);
+        }
+
+        return new PngWriter.Settings(deflateLevel, filter, arguments.contains("-incremental"));
+    }
+
+    /**
+     * Opens the output cache, if -cache is given
+     *
+     * @return The cache, or null if stitched textures aren't cached
+     * @throws IllegalArgumentException If an option has an invalid value, or the cache couldn't be opened
+     */
+    private static OutputCache getCache(String[] args, List<String> arguments) {
+        if (!arguments.contains("-cache")) return null;
+
+        File raw = new File(getArgument(args, arguments, "-cache"));
+        File dir = raw.isAbsolute() ? raw : new File(new File("").getAbsolutePath(), raw.getPath());
+
+        long maxMegabytes = 512;
+        if (arguments.contains("-cacheSize")) {
+            String size = getArgument(args, arguments, "-cacheSize");
+            try {
+                maxMegabytes = Long.parseLong(size);
+            } catch (NumberFormatException e) {
+                maxMegabytes = -1;
+            }
+            if (maxMegabytes < 0)
+                throw new IllegalArgumentException("Cache size has to be a positive amount of MB, got: " + size);
+        }
+
+        try {
+            return new OutputCache(dir, maxMegabytes * 1024 * 1024);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Couldn't open cache directory " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the ctm method & block grid of the preview, given by -layout & -grid
+     *
+     * @return The preview, which is the default 3x3 unless an option is given
+     * @throws IllegalArgumentException If an option has an invalid value
+     */
+    private static Preview getPreview(String[] args, List<String> arguments) {
+        if (!arguments.contains("-layout") && !arguments.contains("-grid")) return Preview.DEFAULT;
+
+        CtmLayout layout = CtmLayouts.COMPACT;
+        if (arguments.contains("-layout")) {
+            String name = getArgument(args, arguments, "-layout");
+            layout = CtmLayouts.byName(name);
+            if (layout == null)
+                throw new IllegalArgumentException("Unknown layout: " + name + ", expected " + CtmLayouts.getNames());
+        }
+
+        Grid grid = arguments.contains("-grid") ? Grid.parse(getArgument(args, arguments, "-grid")) : Grid.DEFAULT;
+        return new Preview(layout, grid);
+    }
+
+    /**
+     * Reads the atlas options, given by -atlas & -atlasSize
+     *
+     * @return The atlas, or null if batch runs write a file per texture
+     * @throws IllegalArgumentException If an option has an invalid value
+     */
+    private static Atlas getAtlas(String[] args, List<String> arguments) {
+        if (!arguments.contains("-atlas")) return null;
+
+        File file = getOutputPath(getArgument(args, arguments, "-atlas"));
+        if (!file.getAbsoluteFile().getParentFile().isDirectory())
+            throw new IllegalArgumentException("Atlas directory doesn't exist: " + file.getAbsoluteFile().getParent());
+
+        int size = Atlas.DEFAULT_SIZE;
+        if (arguments.contains("-atlasSize")) {
+            String raw = getArgument(args, arguments, "-atlasSize");
+            try {
+                size = Integer.parseInt(raw);
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            if (size <= 0)
+                throw new IllegalArgumentException("Atlas size has to be a positive amount of pixels, got: " + raw);
+        }
+
+        return new Atlas(file, size, pngSettings);
+    }
+
+    /**
+     * Reads the tint & overlay drawn onto stitched textures, given by -tint, -overlay, -overlayCtm & -blend
+     *
+     * @return The composite, or null if stitched textures are written as they are
+     * @throws IllegalArgumentException If an option has an invalid value
+     */
+    private static Composite getComposite(String[] args, List<String> arguments) {
+        if (!arguments.contains("-tint") && !arguments.contains("-overlay")) return null;
+
+        int tint = arguments.contains("-tint")
+                ? Composite.parseTint(getArgument(args, arguments, "-tint"))
+                : Composite.NO_TINT;
+
+        File overlay = arguments.contains("-overlay") ? getInputFile(getArgument(args, arguments, "-overlay")) : null;
+        File overlayCtm = null;
+        if (arguments.contains("-overlayCtm")) {
+            if (overlay == null) throw new IllegalArgumentException("-overlayCtm needs an -overlay as well");
+            overlayCtm = getInputFile(getArgument(args, arguments, "-overlayCtm"));
+        }
+
+        Composite.Blend blend = Composite.Blend.OVER;
+        if (arguments.contains("-blend")) {
+            String name = getArgument(args, arguments, "-blend");
+            blend = Composite.Blend.byName(name);
+            if (blend == null)
+                throw new IllegalArgumentException("Unknown blend mode: " + name + ", expected over|premultiplied");
+        }
+
+        return new Composite(tint, blend, overlay, overlayCtm);
+    }
+
+    /**
+     * Reads the threads of every stitching stage, given by -pipeline & -queue
+     *
+     * @return The pipeline, or null if batch runs stitch each texture on a single thread
+     * @throws IllegalArgumentException If an option has an invalid value
+     */
+    private static Pipeline getPipeline(String[] args, List<String> arguments) {
+        if (!arguments.contains("-pipeline")) {
+            if (arguments.contains("-queue")) throw new IllegalArgumentException("-queue needs a -pipeline as well");
+            return null;
+        }
+
+        int queueSize = 0;
+        if (arguments.contains("-queue")) {
+            String raw = getArgument(args, arguments, "-queue");
+            try {
+                queueSize = Integer.parseInt(raw);
+            } catch (NumberFormatException e) {
+                queueSize = -1;
+            }
+            if (queueSize <= 0)
+                throw new IllegalArgumentException("Queue size has to be a positive amount of textures, got: " + raw);
+        }
+
+        return Pipeline.parse(getArgument(args, arguments, "-pipeline"), queueSize);
+    }
+
+    /**
+     * Reads how many textures batch runs stitch at once, given by -threads
+     *
+     * @return The amount of threads, or 0 for the amount of cores
+     * @throws IllegalArgumentException If the option has an invalid value, or is combined with a pipeline
+     */
+    private static int getThreads(String[] args, List<String> arguments) {
+        if (!arguments.contains("-threads")) return 0;
+        if (pipeline != null)
+            throw new IllegalArgumentException("-threads can't be combined with -pipeline, which sets them per stage");
+
+        String raw = getArgument(args, arguments, "-threads");
+        int count;
+        try {
+            count = Integer.parseInt(raw);
+        } catch (NumberFormatException e) {
+            count = -1;
+        }
+        if (count <= 0)
+            throw new IllegalArgumentException("Threads have to be a positive amount, got: " + raw);
+        return count;
+    }
+
+    private static File getInputFile(String path) {
+        File file = getOutputPath(path);
+        if (!file.isFile()) throw new IllegalArgumentException("Given file doesn't exist: " + file);
+        return file;
+    }
+
+    private static File getOutputPath(String path) {
+        File raw = new File(path);
+        return raw.isAbsolute() ? raw : new File(new File("").getAbsolutePath(), path);
+    }
+
+    private static String getArgument(String[] args, List<String> arguments, String option) {
+        int index = arguments.indexOf(option) + 1;
+        if (index >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[index];
     }
 
     private static int getChoice(Scanner in) {
@@ -213,263 +694,322 @@ public class Main {
         return file;
     }
 
-    private static BufferedImage loadImage(File file) {
-        try { return ImageIO.read(file); }
+    /**
+     * @param file A png file
+     * @return The decoded image, normalized to packed ARGB, or null if it couldn't be read
+     * @see ImageAccess#normalize(BufferedImage)
+     */
+    static BufferedImage loadImage(File file) {
+        return loadImage(file, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Decodes only the top rows of a png, like the frames of a ctm texture a plan actually reads.
+     * Common pngs are decoded by {@link PngReader}, any others through ImageIO
+     *
+     * @param file A png file
+     * @param rows The amount of rows to decode, from the top. If the png isn't taller, it's decoded as a whole
+     * @return The decoded rows, normalized to packed ARGB, or null if they couldn't be read
+     */
+    static BufferedImage loadImage(File file, int rows) {
+        try {
+            BufferedImage img = PngReader.read(file, rows);
+            if (img != null) return img;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) return null;
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                int width = reader.getWidth(0), height = reader.getHeight(0);
+                //Sources a plan doesn't read at all still get their first row decoded, so they're never empty
+                if (rows < height) param.setSourceRegion(new Rectangle(0, 0, width, Math.max(rows, 1)));
+
+                return ImageAccess.normalize(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        }
         catch (IOException e) { e.printStackTrace(); }
         return null;
     }
 
-    private static void writeImage(BufferedImage out) {
+    /**
+     * @param regular The regular texture
+     * @param outputDir The directory the stitched texture is written to
+     * @param preview The preview the texture is stitched into
+     * @return The file the stitched texture for the given regular texture is written to
+     */
+    static File getOutputFile(File regular, File outputDir, Preview preview) {
+        return new File(outputDir, regular.getName().replace(".png", "") + "-" + preview.getSuffix() + ".png");
+    }
+
+    /**
+     * Only the grid tells compact outputs apart, which textures like "panel-16x16.png" could have as well,
+     * so those only count for the default & the given preview
+     *
+     * @param name The name of a file
+     * @param preview The preview textures are stitched into
+     * @return Whether the file is named like a stitched texture: like "stone-3x3.png", like the given preview,
+     *         or like any other layout than the compact one, like "glass-ctm-5x4.png"
+     */
+    static boolean isOutputFile(String name, Preview preview) {
+        String lower = name.toLowerCase();
+        return lower.endsWith("-" + Preview.DEFAULT.getSuffix() + ".png")
+                || lower.endsWith("-" + preview.getSuffix() + ".png")
+                || SHEET_OUTPUT.matcher(lower).matches();
+    }
+
+    /**
+     * Writes an image as png, with the default settings of {@link PngWriter} for packed ARGB images,
+     * otherwise through ImageIO
+     *
+     * @param out The image
+     * @param file The file the png is written to
+     * @return Whether the image was written
+     */
+    static boolean writeImage(BufferedImage out, File file) {
         try {
-            ImageIO.write(
-                    out, "png",
-                    new File(outputDir, Main.regular.getName().replace(".png", "") + "-3x3.png")
-            );
-            System.out.println("Image created");
+            if (ImageAccess.isPackedArgb(out)) {
+                return writeImage(out, new BufferedOutputStream(new FileOutputStream(file)),
+                                  PngWriter.Settings.DEFAULT);
+            }
+            return ImageIO.write(out, "png", file);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return false;
     }
 
     /**
-     * Used for textures without ctm & animation
+     * Writes an image as png, with the default settings of {@link PngWriter} for packed ARGB images,
+     * otherwise through ImageIO
+     *
+     * @param out The image
+     * @param stream The stream the png is written to, which is closed afterwards
+     * @return Whether the image was written
+     */
+    static boolean writeImage(BufferedImage out, OutputStream stream) {
+        if (ImageAccess.isPackedArgb(out)) return writeImage(out, stream, PngWriter.Settings.DEFAULT);
+
+        try (OutputStream closed = stream) {
+            return ImageIO.write(out, "png", closed);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Writes an image with the given settings of the streaming png writer
+     *
+     * @param out The stitched image
+     * @param stream The stream the png is written to, which is closed afterwards
+     * @param settings How the png is encoded
+     * @return Whether the image was written
+     */
+    static boolean writeImage(BufferedImage out, OutputStream stream, PngWriter.Settings settings) {
+        try (PngWriter writer = new PngWriter(stream, out.getWidth(), out.getHeight(), settings)) {
+            writer.writeRows(ImageAccess.getPixels(ImageAccess.normalize(out)), 0, out.getHeight());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Stitches a validated texture straight into a png, one frame at a time.
+     * Only a single stitched frame is kept in memory, no matter how many frames the texture has
      *
      * @param regular The regular texture
-     * @return A 3x3 grid of the original texture
+     * @param ctm The ctm texture, or null if none is used
+     * @param file The file the stitched texture is written to
+     * @param settings How the png is encoded
+     * @param preview The preview to stitch
+     * @return Whether the stitched texture was written
      */
-    private static BufferedImage stitchImage(BufferedImage regular) {
-        return stitchImage(regular, 1);
+    static boolean streamImage(BufferedImage regular, BufferedImage ctm, File file, PngWriter.Settings settings,
+                               Preview preview) {
+        return streamImage(regular, ctm, regular.getHeight() / regular.getWidth(), file, settings,
+                           preview.getPlan(regular, ctm), null, null);
     }
 
     /**
-     * Used for textures without ctm, but with animation
+     * Stitches a validated texture straight into a png, one frame at a time. With incremental settings, only frames
+     * whose inputs changed since the png was last written are stitched & compressed, see {@link FrameIndex}
      *
      * @param regular The regular texture
+     * @param ctm The ctm texture, or null if none is used
      * @param frameCount The amount of frames the texture has
-     * @return 3x3 grids of the original texture, laid out in minecraft's animation format
+     * @param file The file the stitched texture is written to
+     * @param settings How the png is encoded
+     * @param plan The copy plan stitching a single frame
+     * @param compositor The tint & overlay drawn onto every frame, or null if there are none
+     * @param metrics Where the time spent stitching & encoding is added, or null if it isn't recorded
+     * @return Whether the stitched texture was written
      */
-    private static BufferedImage stitchImage(BufferedImage regular, int frameCount) {
-        Raster r = regular.getData();
-        int width = r.getWidth(), height = r.getHeight();
-
-        BufferedImage out = new BufferedImage(width * 3, height * 3, TYPE_INT_ARGB);
-
-        for (int i = 0; i < frameCount; i++) {
-            int[] rgb = regular.getRGB(0, i * width, width, width, null, 0, width);
+    static boolean streamImage(BufferedImage regular, BufferedImage ctm, int frameCount, File file,
+                               PngWriter.Settings settings, CopyPlan plan, Compositor compositor,
+                               JobMetrics metrics) {
+        if (settings.incremental)
+            return FrameIndex.write(regular, ctm, frameCount, file, settings, plan, compositor, metrics);
 
-            for (int y = 0; y < 3; y++) {
-                for (int x = 0; x < 3; x++) {
-                    out.setRGB(width * x, width * (y + i * 3), width, width, rgb, 0, width);
-                }
-            }
+        try {
+            return streamImage(regular, ctm, frameCount, new BufferedOutputStream(new FileOutputStream(file)),
+                               settings, plan, compositor, metrics);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return out;
+        return false;
     }
 
     /**
-     * Used for textures with ctm, but without animation
+     * Stitches a validated texture straight into a png, one frame at a time
      *
      * @param regular The regular texture
-     * @param ctm The ctm texture
-     * @return A stitched ctm texture emulating a 3x3 of blocks
+     * @param ctm The ctm texture, or null if none is used
+     * @param stream The stream the stitched texture is written to, which is closed afterwards
+     * @param settings How the png is encoded
+     * @param preview The preview to stitch
+     * @return Whether the stitched texture was written
      */
-    private static BufferedImage stitchImage(BufferedImage regular, BufferedImage ctm) {
-        return stitchImage(regular, ctm, 1);
+    static boolean streamImage(BufferedImage regular, BufferedImage ctm, OutputStream stream,
+                               PngWriter.Settings settings, Preview preview) {
+        return streamImage(regular, ctm, regular.getHeight() / regular.getWidth(), stream, settings,
+                           preview.getPlan(regular, ctm), null, null);
     }
 
     /**
-     * Used for textures with ctm & animation
+     * Stitches a validated texture straight into a png, one frame at a time
      *
      * @param regular The regular texture
-     * @param ctm The ctm texture
+     * @param ctm The ctm texture, or null if none is used
      * @param frameCount The amount of frames the texture has
-     * @return Stitched ctm textures emulating a 3x3 grid of blocks, in minecraft's animation format
+     * @param stream The stream the stitched texture is written to, which is closed afterwards
+     * @param settings How the png is encoded
+     * @param plan The copy plan stitching a single frame
+     * @param compositor The tint & overlay drawn onto every frame, or null if there are none
+     * @param metrics Where the time spent stitching & encoding is added, or null if it isn't recorded
+     * @return Whether the stitched texture was written
      */
-    private static BufferedImage stitchImage(BufferedImage regular, BufferedImage ctm, int frameCount) {
-        Raster r = regular.getData(), c = ctm.getData();
-
-        int rWidth = r.getWidth(), rHeight = r.getHeight(), cWidth = c.getWidth();
-        int pSize = rWidth / 2; //The width & height of a single part of a texture
-
-        //5 textures split up into quarters. 5 * 4 = 20
-        BufferedImage[] parts = new BufferedImage[20];
-
-        for(TexturePart P : TexturePart.values())
-            parts[P.ordinal()] = new BufferedImage(pSize, pSize, TYPE_INT_ARGB);
-
-        BufferedImage out = new BufferedImage(rWidth * 3, rHeight * 3, TYPE_INT_ARGB);
-
-        for (int i = 0; i < frameCount; i++) {
-            int yBase = i * rWidth;
-
-            //region Regular
-            parts[0].setRGB( //Regular top left
-                             0, 0, pSize, pSize,
-                             regular.getRGB(0, yBase, pSize, pSize, null, 0, pSize),
-                             0, pSize
-            );
-
-            parts[1].setRGB( //Regular top right
-                             0, 0, pSize, pSize,
-                             regular.getRGB(pSize, yBase, pSize, pSize, null, 0, pSize),
-                             0, pSize
-            );
-
-            parts[2].setRGB( //Regular bottom left
-                             0, 0, pSize, pSize,
-                             regular.getRGB(0, pSize + yBase, pSize, pSize, null, 0, pSize),
-                             0, pSize
-            );
-
-            parts[3].setRGB( //Regular bottom right
-                             0, 0, pSize, pSize,
-                             regular.getRGB(pSize, pSize + yBase, pSize, pSize, null, 0, pSize),
-                             0, pSize
-            );
-            //endregion
-
-            yBase = i * cWidth;
-            int single = cWidth / 2;
-
-            //region Edgeless
-            parts[4].setRGB( //Edgeless top left
-                             0, 0, pSize, pSize,
-                             ctm.getRGB(0, yBase, pSize, pSize, null, 0, pSize),
-                             0, pSize
-            );
-
-            parts[5].setRGB( //Edgeless top right
-                             0, 0, pSize, pSize,
-                             ctm.getRGB(pSize, yBase, pSize, pSize, null, 0, pSize),
-                             0, pSize
-            );
-
-            parts[6].setRGB( //Edgeless bottom left
-                             0, 0, pSize, pSize,
-                             ctm.getRGB(0, pSize + yBase, pSize, pSize, null, 0, pSize),
-                             0, pSize
-            );
-
-            parts[7].setRGB( //Edgeless bottom right
-                             0, 0, pSize, pSize,
-                             ctm.getRGB(pSize, pSize + yBase, pSize, pSize, null, 0, pSize),
-                             0, pSize
-            );
-            //endregion
-
-            //region Vertical
-            parts[8].setRGB( //Vertical top left
-                             0, 0, pSize, pSize,
-                             ctm.getRGB(single, yBase, pSize, pSize, null, 0, pSize),
-                             0, pSize
-            );
-
-            parts[9].setRGB( //Vertical top right
-                             0, 0, pSize, pSize,
-                             ctm.getRGB(pSize + single, yBase, pSize, pSize, null , 0, pSize),
-                             0, pSize
-            );
-
-            parts[10].setRGB( //Vertical bottom left
-                              0, 0, pSize, pSize,
-                              ctm.getRGB(single, pSize + yBase, pSize, pSize, null, 0, pSize),
-                              0, pSize
-            );
-
-            parts[11].setRGB( //Vertical bottom right
-                             0, 0, pSize, pSize,
-                              ctm.getRGB(pSize + single,pSize + yBase, pSize, pSize,null, 0 , pSize),
-                              0, pSize
-            );
-            //endregion
-
-            //region Horizontal
-            parts[12].setRGB( //Horizontal top left
-                              0, 0, pSize, pSize,
-                              ctm.getRGB(0, single + yBase, pSize, pSize, null, 0, pSize),
-                              0, pSize
-            );
-
-            parts[13].setRGB( //Horizontal top right
-                              0, 0, pSize, pSize,
-                              ctm.getRGB(pSize, single + yBase, pSize, pSize, null, 0, pSize),
-                              0, pSize
-            );
-
-            parts[14].setRGB( //Horizontal bottom left
-                              0, 0, pSize, pSize,
-                              ctm.getRGB(0, pSize + single + yBase, pSize, pSize, null, 0, pSize),
-                              0, pSize
-            );
-
-            parts[15].setRGB( //Horizontal bottom right
-                             0, 0, pSize, pSize,
-                              ctm.getRGB(pSize, pSize + single + yBase, pSize, pSize, null, 0, pSize),
-                              0, pSize
-            );
-            //endregion
-
-            //region Corners
-            parts[16].setRGB( //Corner-only top left
-                              0, 0, pSize, pSize,
-                              ctm.getRGB(single, single + yBase, pSize, pSize, null, 0, pSize),
-                              0, pSize
-            );
-
-            parts[17].setRGB( //Corner-only top right
-                              0, 0, pSize, pSize,
-                              ctm.getRGB(single + pSize, single + yBase, pSize, pSize, null, 0, pSize),
-                              0, pSize
-            );
-
-            parts[18].setRGB( //Corner-only bottom left
-                              0, 0, pSize, pSize,
-                              ctm.getRGB(single, pSize + single + yBase, pSize, pSize, null, 0, pSize),
-                              0, pSize
-            );
-
-            parts[19].setRGB( //Corner-only bottom right
-                              0, 0, pSize, pSize,
-                              ctm.getRGB(pSize + single, pSize + single + yBase, pSize, pSize, null, 0, pSize),
-                              0, pSize
-            );
-            //endregion
-
-            yBase = 3 * i * rWidth;
-            for (int y = 0; y < 6; y++) {
-                for (int x = 0; x < 6; x++) {
-                    TexturePart P = getPartForCoords(x, y);
-                    if (P == null) return null;
-                    out.setRGB(
-                            x * pSize, (y + yBase) * pSize,
-                            pSize, pSize,
-                            getRGB(parts[P.ordinal()]),
-                            0, pSize
-                    );
-                }
+    static boolean streamImage(BufferedImage regular, BufferedImage ctm, int frameCount, OutputStream stream,
+                               PngWriter.Settings settings, CopyPlan plan, Compositor compositor,
+                               JobMetrics metrics) {
+        int[] regularPixels = ImageAccess.getPixels(ImageAccess.normalize(regular));
+        int[] ctmPixels = ctm == null ? null : ImageAccess.getPixels(ImageAccess.normalize(ctm));
+        int[] frame = BufferPool.get().acquire(plan.getWidth() * plan.getHeight());
+        if (!plan.coversFrame()) Arrays.fill(frame, 0);
+        long stitchNanos = 0, start = System.nanoTime();
+
+        try (PngWriter writer = new PngWriter(stream, plan.getWidth(), plan.getHeight() * frameCount, settings)) {
+            for (int i = 0; i < frameCount; i++) {
+                long frameStart = System.nanoTime();
+                StitchKernel.stitchFrame(plan, regularPixels, ctmPixels, i, frame, 0);
+                if (compositor != null) compositor.apply(frame, 0, i);
+                stitchNanos += System.nanoTime() - frameStart;
+
+                writer.writeRows(frame, 0, plan.getHeight());
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            BufferPool.get().release(frame);
         }
 
-        return out;
+        //Measured once the writer is closed, which compresses & writes the last rows
+        if (metrics != null) {
+            metrics.stitchNanos += stitchNanos;
+            metrics.encodeNanos += System.nanoTime() - start - stitchNanos;
+            metrics.buffer(frame.length);
+        }
+        return true;
     }
 
-    private static boolean notPowerOfTwo(int a) {
+    static boolean notPowerOfTwo(int a) {
         return a <= 0 || (a & (a - 1)) != 0;
     }
 
-    private static int[] getRGB(BufferedImage img) {
-        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
-    }
-
     /**
      * Makes keeping track of split textures easier
      */
     public enum TexturePart {
-        REG_TOP_L, REG_TOP_R, REG_BOT_L, REG_BOT_R, //Regular textures
-        NON_TOP_L, NON_TOP_R, NON_BOT_L, NON_BOT_R, //Edgeless textures
-        VER_TOP_L, VER_TOP_R, VER_BOT_L, VER_BOT_R, //Vertical textures
-        HOR_TOP_L, HOR_TOP_R, HOR_BOT_L, HOR_BOT_R, //Horizontal textures
-        COR_TOP_L, COR_TOP_R, COR_BOT_L, COR_BOT_R; //Corner-only textures
+        REG_TOP_L(false, 0, 0), REG_TOP_R(false, 1, 0), REG_BOT_L(false, 0, 1), REG_BOT_R(false, 1, 1), //Regular textures
+        NON_TOP_L(true, 0, 0), NON_TOP_R(true, 1, 0), NON_BOT_L(true, 0, 1), NON_BOT_R(true, 1, 1), //Edgeless textures
+        VER_TOP_L(true, 2, 0), VER_TOP_R(true, 3, 0), VER_BOT_L(true, 2, 1), VER_BOT_R(true, 3, 1), //Vertical textures
+        HOR_TOP_L(true, 0, 2), HOR_TOP_R(true, 1, 2), HOR_BOT_L(true, 0, 3), HOR_BOT_R(true, 1, 3), //Horizontal textures
+        COR_TOP_L(true, 2, 2), COR_TOP_R(true, 3, 2), COR_BOT_L(true, 2, 3), COR_BOT_R(true, 3, 3); //Corner-only textures
+
+        /**
+         * The part for each of the 6x6 cells of the default 3x3 preview, row by row. Compiled once, as it never
+         * changes. Other grids are compiled by {@link CtmLayouts#COMPACT}, which also places the corner-only parts
+         */
+        private static final List<TexturePart> ARRANGEMENT = compileArrangement();
+
+        private final boolean ctm;
+        private final int partX, partY;
+
+        /**
+         * @param ctm Whether the part is taken from the ctm texture, rather than the regular one
+         * @param partX The x offset of the part within its texture, in parts
+         * @param partY The y offset of the part within its texture, in parts
+         */
+        TexturePart(boolean ctm, int partX, int partY) {
+            this.ctm = ctm;
+            this.partX = partX;
+            this.partY = partY;
+        }
+
+        /**
+         * @return Whether the part is taken from the ctm texture, rather than the regular one
+         */
+        public boolean isCtm() {
+            return ctm;
+        }
+
+        /**
+         * @param partSize The width & height of a single part, which is half the width of the regular texture
+         * @return The x offset of the part within a single frame of its texture, in pixels
+         */
+        public int getSourceX(int partSize) {
+            return partX * partSize;
+        }
+
+        /**
+         * @param partSize The width & height of a single part, which is half the width of the regular texture
+         * @return The y offset of the part within a single frame of its texture, in pixels
+         */
+        public int getSourceY(int partSize) {
+            return partY * partSize;
+        }
+
+        /**
+         * @return The part for each of the 6x6 cells of the default 3x3 preview, row by row.
+         *         The cell at (x,y) is found at index y * 6 + x
+         */
+        public static List<TexturePart> getArrangement() {
+            return ARRANGEMENT;
+        }
+
+        private static List<TexturePart> compileArrangement() {
+            TexturePart[] arrangement = new TexturePart[36];
+            for (int y = 0; y < 6; y++) {
+                for (int x = 0; x < 6; x++)
+                    arrangement[y * 6 + x] = getPartByName(getNameForCoords(x, y));
+            }
+            return Collections.unmodifiableList(Arrays.asList(arrangement));
+        }
 
         private static TexturePart getPartByName(String name) {
             for(TexturePart P : values()) {
@@ -515,6 +1055,10 @@ public class Main {
                 return null;
             }
 
+            return ARRANGEMENT.get(y * 6 + x);
+        }
+
+        private static String getNameForCoords(int x, int y) {
             StringBuilder name = new StringBuilder();
 
             if ((x == 0 && y == 0) || (x == 5 && y == 0) || (x == 0 && y == 5) || (x == 5 && y == 5))
@@ -530,7 +1074,7 @@ public class Main {
             name.append((y & 1) == 0 ? "TOP" : "BOT").append("_");
             name.append((x & 1) == 0 ? "L" : "R");
 
-            return getPartByName(name.toString());
+            return name.toString();
         }
     }
 }
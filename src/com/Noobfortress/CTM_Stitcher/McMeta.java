@@ -0,0 +1,101 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The animation settings of a texture, as found in its .png.mcmeta file
+ */
+final class McMeta {
+
+    private final Map<?, ?> root;
+    private final int[] frames;
+
+    private McMeta(Map<?, ?> root, int[] frames) {
+        this.root = root;
+        this.frames = frames;
+    }
+
+    /**
+     * @param texture A texture
+     * @return The .mcmeta file belonging to the texture, which might not exist
+     */
+    static File getFile(File texture) {
+        return new File(texture.getParentFile(), texture.getName() + ".mcmeta");
+    }
+
+    /**
+     * @param texture A texture
+     * @return The animation settings of the texture, or null if it has no .mcmeta file
+     * @throws IOException If the .mcmeta file couldn't be read or isn't valid
+     */
+    static McMeta read(File texture) throws IOException {
+        File file = getFile(texture);
+        if (!file.isFile()) return null;
+
+        Object root;
+        try {
+            root = Json.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid json in " + file.getName() + ": " + e.getMessage());
+        }
+
+        if (!(root instanceof Map)) throw new IOException(file.getName() + " isn't a json object");
+
+        Object animation = ((Map<?, ?>) root).get("animation");
+        if (!(animation instanceof Map)) return new McMeta((Map<?, ?>) root, null);
+
+        Object frames = ((Map<?, ?>) animation).get("frames");
+        return new McMeta((Map<?, ?>) root, frames instanceof List ? readFrames(file, (List<?>) frames) : null);
+    }
+
+    private static int[] readFrames(File file, List<?> list) throws IOException {
+        int[] frames = new int[list.size()];
+
+        for (int i = 0; i < frames.length; i++) {
+            Object frame = list.get(i);
+            if (frame instanceof Map) frame = ((Map<?, ?>) frame).get("index");
+
+            if (!(frame instanceof Long))
+                throw new IOException("Invalid frame at position " + i + " in " + file.getName());
+            frames[i] = ((Long) frame).intValue();
+        }
+
+        return frames;
+    }
+
+    /**
+     * @param frameCount The amount of frames in the texture
+     * @return A description of the problem, or null if the animation only uses frames the texture has
+     */
+    String validate(int frameCount) {
+        if (frames == null) return null;
+
+        for (int frame : frames) {
+            if (frame < 0 || frame >= frameCount)
+                return "Animation uses frame " + frame + ", but the texture only has " + frameCount + " frame(s)";
+        }
+        return null;
+    }
+
+    /**
+     * Writes the animation settings next to a stitched texture. As the stitched texture keeps the frame indices
+     * of the original, the frame order, frame times & interpolation carry over unchanged
+     *
+     * @param output The stitched texture
+     * @return Whether the .mcmeta file was written
+     */
+    boolean write(File output) {
+        try {
+            Files.write(getFile(output).toPath(), Json.write(root).getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,177 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects the metrics of every job run by this process, across batch runs, watch mode & the stitch server.
+ * Written as json, or as Prometheus text if the file doesn't end in ".json"
+ */
+final class Metrics {
+
+    /**
+     * Upper bounds of the histogram buckets, in seconds
+     */
+    private static final double[] BUCKETS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final String[] STAGES = {"validate", "decode", "stitch", "encode", "total"};
+
+    private final File file;
+
+    //The latest run of every texture, so the slow ones can be found
+    private final Map<String, JobMetrics> latest = new LinkedHashMap<>();
+
+    private final long[][] bucketCounts = new long[STAGES.length][BUCKETS.length + 1];
+    private final long[] stageNanos = new long[STAGES.length];
+    private long jobs, failed, cached;
+    private long bytesRead, bytesWritten, pixelsCopied, peakBufferBytes;
+
+    /**
+     * @param file The file the metrics are written to
+     */
+    Metrics(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param job The metrics of a finished job
+     */
+    synchronized void record(JobMetrics job) {
+        latest.remove(job.name);
+        latest.put(job.name, job);
+
+        long[] nanos = {job.validateNanos, job.decodeNanos, job.stitchNanos, job.encodeNanos, job.totalNanos};
+        for (int s = 0; s < STAGES.length; s++) {
+            if (nanos[s] == 0) continue; //Stages the job never got to, like decoding a cached texture
+
+            stageNanos[s] += nanos[s];
+
+            int bucket = 0;
+            while (bucket < BUCKETS.length && nanos[s] / 1e9 > BUCKETS[bucket]) bucket++;
+            bucketCounts[s][bucket]++;
+        }
+
+        jobs++;
+        if (job.error != null) failed++;
+        if (job.cached) cached++;
+        bytesRead += job.bytesRead;
+        bytesWritten += job.bytesWritten;
+        pixelsCopied += job.pixelsCopied;
+        peakBufferBytes = Math.max(peakBufferBytes, job.peakBufferBytes);
+    }
+
+    /**
+     * Writes all metrics collected so far, replacing the previous file
+     */
+    void write() {
+        String text;
+        synchronized (this) {
+            text = file.getName().toLowerCase().endsWith(".json") ? toJson() : toPrometheus();
+        }
+
+        try {
+            //Written under a temporary name first, so whatever reads the file never sees half of it
+            File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+            Files.write(temp.toPath(), text.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private String toJson() {
+        Map<String, Object> totals = new LinkedHashMap<>();
+        totals.put("jobs", jobs);
+        totals.put("failed", failed);
+        totals.put("cached", cached);
+        totals.put("bytesRead", bytesRead);
+        totals.put("bytesWritten", bytesWritten);
+        totals.put("pixelsCopied", pixelsCopied);
+        totals.put("peakBufferBytes", peakBufferBytes);
+        totals.put("bufferPoolHits", BufferPool.getHits());
+        totals.put("bufferPoolMisses", BufferPool.getMisses());
+
+        Map<String, Object> histograms = new LinkedHashMap<>();
+        for (int s = 0; s < STAGES.length; s++) {
+            List<Object> buckets = new ArrayList<>();
+            for (int b = 0; b <= BUCKETS.length; b++) {
+                Map<String, Object> bucket = new LinkedHashMap<>();
+                bucket.put("leMs", b < BUCKETS.length ? BUCKETS[b] * 1000 : "+Inf");
+                bucket.put("count", bucketCounts[s][b]);
+                buckets.add(bucket);
+            }
+
+            Map<String, Object> histogram = new LinkedHashMap<>();
+            histogram.put("sumMs", stageNanos[s] / 1e6);
+            histogram.put("buckets", buckets);
+            histograms.put(STAGES[s], histogram);
+        }
+
+        List<Object> jobList = new ArrayList<>();
+        for (JobMetrics job : latest.values())
+            jobList.add(job.toJson());
+
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("version", Main.VERSION);
+        root.put("totals", totals);
+        root.put("histograms", histograms);
+        root.put("jobs", jobList);
+        return Json.write(root) + "\n";
+    }
+
+    private String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+
+        out.append("# HELP ctm_stitcher_stage_seconds Time spent in each stage of a stitch job\n");
+        out.append("# TYPE ctm_stitcher_stage_seconds histogram\n");
+        for (int s = 0; s < STAGES.length; s++) {
+            long cumulative = 0;
+            for (int b = 0; b <= BUCKETS.length; b++) {
+                cumulative += bucketCounts[s][b];
+                String le = b < BUCKETS.length
+                        ? BigDecimal.valueOf(BUCKETS[b]).stripTrailingZeros().toPlainString()
+                        : "+Inf";
+                out.append(String.format("ctm_stitcher_stage_seconds_bucket{stage=\"%s\",le=\"%s\"} %d\n",
+                                         STAGES[s], le, cumulative));
+            }
+            out.append(String.format(Locale.ROOT, "ctm_stitcher_stage_seconds_sum{stage=\"%s\"} %.6f\n",
+                                     STAGES[s], stageNanos[s] / 1e9));
+            out.append(String.format("ctm_stitcher_stage_seconds_count{stage=\"%s\"} %d\n", STAGES[s], cumulative));
+        }
+
+        out.append("# HELP ctm_stitcher_jobs_total Stitch jobs run, by result\n");
+        out.append("# TYPE ctm_stitcher_jobs_total counter\n");
+        out.append("ctm_stitcher_jobs_total{result=\"stitched\"} ").append(jobs - failed - cached).append('\n');
+        out.append("ctm_stitcher_jobs_total{result=\"cached\"} ").append(cached).append('\n');
+        out.append("ctm_stitcher_jobs_total{result=\"failed\"} ").append(failed).append('\n');
+
+        appendMetric(out, "ctm_stitcher_bytes_read_total", "counter", "Bytes of input files read", bytesRead);
+        appendMetric(out, "ctm_stitcher_bytes_written_total", "counter", "Bytes of stitched pngs written",
+                     bytesWritten);
+        appendMetric(out, "ctm_stitcher_pixels_copied_total", "counter", "Pixels copied into stitched textures",
+                     pixelsCopied);
+        appendMetric(out, "ctm_stitcher_peak_buffer_bytes", "gauge", "Biggest pixel buffer a single job needed",
+                     peakBufferBytes);
+        appendMetric(out, "ctm_stitcher_buffer_pool_hits_total", "counter", "Pixel buffers reused from a pool",
+                     BufferPool.getHits());
+        appendMetric(out, "ctm_stitcher_buffer_pool_misses_total", "counter", "Pixel buffers newly allocated",
+                     BufferPool.getMisses());
+        return out.toString();
+    }
+
+    private static void appendMetric(StringBuilder out, String name, String type, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,213 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * On-disk cache of stitched textures, keyed by the contents of their inputs.
+ * Unchanged textures are copied from the cache instead of being decoded, stitched & encoded again.
+ * When the cache grows past its size limit, the least recently used entries are removed
+ */
+final class OutputCache {
+
+    /**
+     * Temporary files older than this are left over from stores which crashed, not written by another process
+     */
+    private static final long STALE_TEMP_MS = 60 * 60 * 1000;
+
+    private final Path dir;
+    private final long maxBytes;
+    private long size;
+
+    private final AtomicInteger hits = new AtomicInteger(), misses = new AtomicInteger();
+
+    /**
+     * @param dir The directory the cache is kept in, which is created if it doesn't exist
+     * @param maxBytes The size the cache is trimmed to
+     * @throws IOException If the directory couldn't be created or read
+     */
+    OutputCache(File dir, long maxBytes) throws IOException {
+        this.dir = Files.createDirectories(dir.toPath());
+        this.maxBytes = maxBytes;
+        deleteStaleTemps();
+
+        for (Path entry : listEntries())
+            size += Files.size(entry);
+
+        //The limit might have been lowered since the last run
+        if (size > maxBytes) evict();
+    }
+
+    /**
+     * @param regular The regular texture
+     * @param ctm The ctm texture, or null if none is used
+     * @param preview The preview the texture is stitched into. A different method or grid never reuses old entries
+     * @param composite The tint & overlay drawn onto the texture, or null if there are none
+     * @param pngSettings The settings of the streaming png writer, or null if the image is written as a whole
+     * @return The key of the stitched texture: a hash of all inputs, the preview, the encoder & the tool version
+     * @throws IOException If an input couldn't be read
+     */
+    String getKey(File regular, File ctm, Preview preview, Composite composite, PngWriter.Settings pngSettings)
+            throws IOException {
+        MessageDigest digest = Hashes.newDigest();
+
+        String encoder = pngSettings == null
+                ? "png"
+                : "stream:" + pngSettings.deflateLevel + ":" + pngSettings.filter
+                  + (pngSettings.incremental ? ":incremental" : "");
+        digest.update((Main.VERSION + "\n" + preview + "\n" + encoder + "\n").getBytes(StandardCharsets.UTF_8));
+        if (composite != null) digest.update((composite + "\n").getBytes(StandardCharsets.UTF_8));
+
+        List<File> inputs = new ArrayList<>(Arrays.asList(regular, McMeta.getFile(regular), ctm));
+        if (composite != null) inputs.addAll(composite.getInputs());
+
+        //Lengths separate the inputs, so bytes can't shift from one input to the next without changing the key
+        for (File input : inputs) {
+            if (input == null || !input.isFile()) {
+                digest.update(longBytes(-1));
+            } else {
+                digest.update(longBytes(input.length()));
+                Hashes.update(digest, input.toPath());
+            }
+        }
+
+        return Hashes.toHex(digest.digest());
+    }
+
+    /**
+     * Copies a cached stitched texture to its output file
+     *
+     * @param key The key of the stitched texture
+     * @param output The file the stitched texture is written to
+     * @return Whether the texture was cached
+     */
+    boolean restore(String key, File output) {
+        Path entry = dir.resolve(key + ".png");
+
+        try {
+            Files.copy(entry, output.toPath(), REPLACE_EXISTING);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return true;
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+        } catch (IOException e) {
+            misses.incrementAndGet();
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Adds a freshly stitched texture to the cache, removing the least recently used entries if it grows too big
+     *
+     * @param key The key of the stitched texture
+     * @param output The file the stitched texture was written to
+     */
+    void store(String key, File output) {
+        Path entry = dir.resolve(key + ".png");
+        Path temp = null;
+
+        try {
+            //Copied under a temporary name first, so other threads never restore a partially written entry
+            temp = Files.createTempFile(dir, key, ".tmp");
+            Files.copy(output.toPath(), temp, REPLACE_EXISTING);
+            long entrySize = Files.size(temp);
+
+            synchronized (this) {
+                boolean existed = Files.exists(entry);
+                long previous = existed ? Files.size(entry) : 0;
+                Files.move(temp, entry, REPLACE_EXISTING, ATOMIC_MOVE);
+                temp = null;
+
+                size += entrySize - previous;
+                if (size > maxBytes) evict();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            //Never counted or evicted as it isn't an entry, so it would stay forever
+            if (temp != null) deleteTemp(temp);
+        }
+    }
+
+    private void deleteStaleTemps() throws IOException {
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_MS;
+
+        List<Path> temps;
+        try (Stream<Path> files = Files.list(dir)) {
+            temps = files.filter(file -> file.getFileName().toString().endsWith(".tmp")).collect(Collectors.toList());
+        }
+        for (Path temp : temps) {
+            try {
+                if (Files.getLastModifiedTime(temp).toMillis() < staleBefore) Files.deleteIfExists(temp);
+            } catch (NoSuchFileException e) {
+                //Moved into place by the process writing it in the meantime
+            }
+        }
+    }
+
+    private static void deleteTemp(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void evict() throws IOException {
+        List<Path> entries = listEntries();
+        Map<Path, FileTime> times = new HashMap<>();
+        for (Path entry : entries)
+            times.put(entry, Files.getLastModifiedTime(entry));
+
+        //Restoring an entry touches it, so the oldest entries are the least recently used
+        entries.sort(Comparator.comparing(times::get));
+
+        for (Path entry : entries) {
+            if (size <= maxBytes) break;
+
+            long entrySize = Files.size(entry);
+            if (Files.deleteIfExists(entry)) size -= entrySize;
+        }
+    }
+
+    private List<Path> listEntries() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".png")).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return The hit & miss counts and the current size of the cache
+     */
+    synchronized String getStats() {
+        return String.format("Cache: %d hit(s), %d miss(es), %.1f MB of %.1f MB used",
+                             hits.get(), misses.get(), size / 1048576.0, maxBytes / 1048576.0);
+    }
+
+    private static byte[] longBytes(long value) {
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 8; i++)
+            bytes[i] = (byte) (value >>> (56 - i * 8));
+        return bytes;
+    }
+}
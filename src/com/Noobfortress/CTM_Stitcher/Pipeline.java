@@ -0,0 +1,179 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Stitches textures in three stages, each with its own threads: decoding (reading & inflating the inputs),
+ * stitching, and encoding (deflating & writing the png). While one texture is written, the next ones are already
+ * stitched & read, and the slowest stage can be given the most threads.
+ * The stages are connected by bounded queues, so a slow stage makes the ones before it wait instead of piling up
+ * decoded textures in memory
+ */
+final class Pipeline {
+
+    //Put on a queue once for every thread of the stage taking from it, after the last job
+    private static final int END = -1;
+
+    private final int decodeThreads, stitchThreads, encodeThreads, queueSize;
+
+    //Kept for the whole run like the batch pool, so the threads & their buffer pools stay warm between runs
+    private final ExecutorService decoders, stitchers, encoders;
+
+    /**
+     * @param decodeThreads The amount of threads reading & decoding textures
+     * @param stitchThreads The amount of threads stitching decoded textures
+     * @param encodeThreads The amount of threads encoding & writing stitched textures
+     * @param queueSize The amount of textures waiting between two stages at most,
+     *                  or 0 for twice the threads of the stage they're waiting for
+     */
+    Pipeline(int decodeThreads, int stitchThreads, int encodeThreads, int queueSize) {
+        this.decodeThreads = decodeThreads;
+        this.stitchThreads = stitchThreads;
+        this.encodeThreads = encodeThreads;
+        this.queueSize = queueSize;
+
+        decoders = createPool("decode", decodeThreads);
+        stitchers = createPool("stitch", stitchThreads);
+        encoders = createPool("encode", encodeThreads);
+    }
+
+    /**
+     * @param threads The threads of every stage, like "2,1,4" for 2 decode, 1 stitch & 4 encode threads,
+     *                or "auto" to use the amount of cores for decoding & encoding, which wait on the disk,
+     *                and half of them for stitching
+     * @param queueSize The amount of textures waiting between two stages at most, or 0 for the default
+     * @return The pipeline
+     * @throws IllegalArgumentException If the threads aren't 3 positive numbers
+     */
+    static Pipeline parse(String threads, int queueSize) {
+        if (threads.equalsIgnoreCase("auto")) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            return new Pipeline(cores, Math.max(cores / 2, 1), cores, queueSize);
+        }
+
+        String[] parts = threads.split(",");
+        int[] counts = new int[3];
+        if (parts.length == counts.length) {
+            try {
+                for (int i = 0; i < counts.length; i++)
+                    counts[i] = Integer.parseInt(parts[i].trim());
+            } catch (NumberFormatException e) {
+                counts[0] = -1;
+            }
+        }
+
+        if (counts[0] <= 0 || counts[1] <= 0 || counts[2] <= 0)
+            throw new IllegalArgumentException("Pipeline threads have to be \"auto\" or 3 positive numbers like 2,1,4 "
+                                               + "for decoding, stitching & encoding, got: " + threads);
+        return new Pipeline(counts[0], counts[1], counts[2], queueSize);
+    }
+
+    private static ExecutorService createPool(String stage, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, stage + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts running the given jobs through the stages. Jobs are decoded in order, but may finish out of order
+     *
+     * @param jobs The jobs to run
+     * @return The outcome of every job, in the same order: a description of the problem,
+     *         or null if the texture was stitched
+     */
+    List<Future<String>> submit(List<TextureJob> jobs) {
+        List<CompletableFuture<String>> results = new ArrayList<>(jobs.size());
+        BlockingQueue<Integer> toDecode = new LinkedBlockingQueue<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            results.add(new CompletableFuture<>());
+            toDecode.add(i);
+        }
+        for (int i = 0; i < decodeThreads; i++)
+            toDecode.add(END);
+
+        BlockingQueue<Integer> toStitch = new ArrayBlockingQueue<>(queueSize > 0 ? queueSize : stitchThreads * 2);
+        BlockingQueue<Integer> toEncode = new ArrayBlockingQueue<>(queueSize > 0 ? queueSize : encodeThreads * 2);
+
+        start(decoders, decodeThreads, toDecode, toStitch, stitchThreads, TextureJob::decodeStage, jobs, results);
+        start(stitchers, stitchThreads, toStitch, toEncode, encodeThreads, TextureJob::stitchStage, jobs, results);
+        start(encoders, encodeThreads, toEncode, null, 0, job -> {
+            job.encodeStage();
+            return false;
+        }, jobs, results);
+
+        return new ArrayList<>(results);
+    }
+
+    /**
+     * Starts the threads of a single stage, which run jobs until they take the end of the queue.
+     * The last of them to stop passes the end on to the next stage
+     *
+     * @param pool The threads of the stage
+     * @param threads The amount of threads in the pool
+     * @param in The queue the stage takes the indices of jobs from
+     * @param out The queue of the next stage, or null if this is the last one
+     * @param nextThreads The amount of threads of the next stage
+     * @param stage Runs the stage on a job, returning whether the job goes on to the next stage
+     */
+    private static void start(ExecutorService pool, int threads, BlockingQueue<Integer> in, BlockingQueue<Integer> out,
+                              int nextThreads, Predicate<TextureJob> stage, List<TextureJob> jobs,
+                              List<CompletableFuture<String>> results) {
+        AtomicInteger running = new AtomicInteger(threads);
+
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                try {
+                    for (int i; (i = in.take()) != END; ) {
+                        TextureJob job = jobs.get(i);
+
+                        boolean next;
+                        try {
+                            next = stage.test(job);
+                        } catch (Throwable e) {
+                            job.abort(e);
+                            results.get(i).completeExceptionally(e);
+                            continue;
+                        }
+
+                        if (next) out.put(i);
+                        else results.get(i).complete(job.getError());
+                    }
+
+                    if (running.decrementAndGet() == 0 && out != null) {
+                        for (int n = 0; n < nextThreads; n++)
+                            out.put(END);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the threads of every stage once they're done with the jobs already submitted
+     */
+    void shutdown() {
+        decoders.shutdown();
+        stitchers.shutdown();
+        encoders.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return decodeThreads + " decode, " + stitchThreads + " stitch & " + encodeThreads + " encode thread(s)";
+    }
+}
@@ -0,0 +1,169 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Blending operations on packed ARGB pixels, used by {@link Compositor}.
+ * Runs {@link VectorPixelOps} when the jdk.incubator.vector module is available, otherwise the scalar loops below.
+ * Both give exactly the same pixels, which is checked once before the vector version is used
+ */
+final class PixelOps {
+
+    /**
+     * Whether the vector version is used. Needs the JVM to be started with --add-modules jdk.incubator.vector
+     */
+    static final boolean VECTOR = useVector();
+
+    private PixelOps() {}
+
+    /**
+     * Multiplies the colour of pixels with a tint, keeping their alpha
+     *
+     * @param pixels The pixels, changed in place
+     * @param offset The index of the first pixel
+     * @param length The amount of pixels
+     * @param tint The tint, as RGB
+     */
+    static void multiply(int[] pixels, int offset, int length, int tint) {
+        if (VECTOR) VectorPixelOps.multiply(pixels, offset, length, tint);
+        else multiplyScalar(pixels, offset, length, tint);
+    }
+
+    /**
+     * Draws pixels over others, with straight (non-premultiplied) alpha
+     *
+     * @param dst The pixels drawn on, changed in place
+     * @param dstOffset The index of the first pixel drawn on
+     * @param src The pixels drawn
+     * @param srcOffset The index of the first pixel drawn
+     * @param length The amount of pixels
+     */
+    static void over(int[] dst, int dstOffset, int[] src, int srcOffset, int length) {
+        if (VECTOR) VectorPixelOps.over(dst, dstOffset, src, srcOffset, length);
+        else overScalar(dst, dstOffset, src, srcOffset, length);
+    }
+
+    /**
+     * Draws pixels over others, with both already premultiplied by their alpha. Source colours may exceed their
+     * alpha, which makes them add light like glowing overlays do
+     *
+     * @param dst The pixels drawn on, changed in place
+     * @param dstOffset The index of the first pixel drawn on
+     * @param src The pixels drawn
+     * @param srcOffset The index of the first pixel drawn
+     * @param length The amount of pixels
+     */
+    static void overPremultiplied(int[] dst, int dstOffset, int[] src, int srcOffset, int length) {
+        if (VECTOR) VectorPixelOps.overPremultiplied(dst, dstOffset, src, srcOffset, length);
+        else overPremultipliedScalar(dst, dstOffset, src, srcOffset, length);
+    }
+
+    static void multiplyScalar(int[] pixels, int offset, int length, int tint) {
+        int tr = (tint >>> 16) & 0xFF, tg = (tint >>> 8) & 0xFF, tb = tint & 0xFF;
+
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int p = pixels[i];
+            int r = div255(((p >>> 16) & 0xFF) * tr);
+            int g = div255(((p >>> 8) & 0xFF) * tg);
+            int b = div255((p & 0xFF) * tb);
+            pixels[i] = (p & 0xFF000000) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    static void overScalar(int[] dst, int dstOffset, int[] src, int srcOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int s = src[srcOffset + i], d = dst[dstOffset + i];
+            int sa = s >>> 24, da = d >>> 24;
+
+            //The float operations have to stay in the same order as in VectorPixelOps, so both round the same
+            float srcWeight = sa;
+            float dstWeight = (da * (255 - sa)) / 255f;
+            float alpha = srcWeight + dstWeight;
+            float scale = alpha == 0 ? 0 : 1f / alpha;
+
+            int r = round((((s >>> 16) & 0xFF) * srcWeight + ((d >>> 16) & 0xFF) * dstWeight) * scale);
+            int g = round((((s >>> 8) & 0xFF) * srcWeight + ((d >>> 8) & 0xFF) * dstWeight) * scale);
+            int b = round(((s & 0xFF) * srcWeight + (d & 0xFF) * dstWeight) * scale);
+            int a = round(alpha);
+
+            dst[dstOffset + i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    static void overPremultipliedScalar(int[] dst, int dstOffset, int[] src, int srcOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int s = src[srcOffset + i], d = dst[dstOffset + i];
+            int inverse = 255 - (s >>> 24);
+
+            int a = Math.min((s >>> 24) + div255((d >>> 24) * inverse), 255);
+            int r = Math.min(((s >>> 16) & 0xFF) + div255(((d >>> 16) & 0xFF) * inverse), 255);
+            int g = Math.min(((s >>> 8) & 0xFF) + div255(((d >>> 8) & 0xFF) * inverse), 255);
+            int b = Math.min((s & 0xFF) + div255((d & 0xFF) * inverse), 255);
+
+            dst[dstOffset + i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * Rounds to the nearest integer by adding 2^23, after which the integer part is exactly the float's mantissa.
+     * Unlike a cast, this has a fast vector equivalent
+     *
+     * @param x A float from 0 to 2^22
+     * @return x rounded to the nearest integer, ties to even
+     */
+    static int round(float x) {
+        return Float.floatToRawIntBits(x + 0x1p23f) & 0x7FFFFF;
+    }
+
+    /**
+     * @param x A product of two channels, from 0 to 255 * 255
+     * @return x / 255, rounded to the nearest integer, without a division
+     */
+    static int div255(int x) {
+        x += 128;
+        return (x + (x >>> 8)) >>> 8;
+    }
+
+    /**
+     * @return Whether the vector module is available & its operations give the same pixels as the scalar ones
+     */
+    private static boolean useVector() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) return false;
+
+        try {
+            //Random pixels, including fully transparent & opaque ones, at a length which leaves a scalar tail
+            Random random = new Random(0x5EED);
+            int length = 1021;
+            int[] src = new int[length], dst = new int[length];
+            for (int i = 0; i < length; i++) {
+                src[i] = random.nextInt();
+                dst[i] = random.nextInt();
+                if (i % 7 == 0) src[i] &= 0x00FFFFFF;
+                if (i % 11 == 0) dst[i] |= 0xFF000000;
+            }
+
+            int[] scalar = dst.clone(), vector = dst.clone();
+            multiplyScalar(scalar, 0, length, 0x7FC93A);
+            VectorPixelOps.multiply(vector, 0, length, 0x7FC93A);
+            boolean same = Arrays.equals(scalar, vector);
+
+            scalar = dst.clone();
+            vector = dst.clone();
+            overScalar(scalar, 0, src, 0, length);
+            VectorPixelOps.over(vector, 0, src, 0, length);
+            same &= Arrays.equals(scalar, vector);
+
+            scalar = dst.clone();
+            vector = dst.clone();
+            overPremultipliedScalar(scalar, 0, src, 0, length);
+            VectorPixelOps.overPremultiplied(vector, 0, src, 0, length);
+            same &= Arrays.equals(scalar, vector);
+
+            if (!same) System.err.println("Vector pixel operations differ from scalar ones, using scalar ones");
+            return same;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+}
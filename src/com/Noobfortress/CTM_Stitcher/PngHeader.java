@@ -0,0 +1,79 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The IHDR of a png, read without touching any of its pixel data.
+ * Enough to validate the size & frame count of a texture before it's decoded
+ */
+final class PngHeader {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    //Signature, then the IHDR chunk: length, type, 13 bytes of data & crc
+    private static final int SIZE = 8 + 4 + 4 + 13 + 4;
+
+    final int width, height, bitDepth, colourType;
+    final boolean interlaced;
+
+    private PngHeader(int width, int height, int bitDepth, int colourType, boolean interlaced) {
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.colourType = colourType;
+        this.interlaced = interlaced;
+    }
+
+    /**
+     * Reads the first 33 bytes of a png
+     *
+     * @param file A png file
+     * @return The header of the png
+     * @throws IOException If the file couldn't be read, or doesn't start with a valid png header
+     */
+    static PngHeader read(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+        }
+
+        if (buffer.hasRemaining()) throw new IOException(file.getName() + " is too short to be a png");
+        buffer.flip();
+
+        for (byte b : SIGNATURE) {
+            if (buffer.get() != b) throw new IOException(file.getName() + " isn't a png");
+        }
+
+        if (buffer.getInt() != 13 || buffer.getInt() != 0x49484452) //"IHDR"
+            throw new IOException(file.getName() + " doesn't start with a png header");
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 12, 4 + 13);
+        if ((int) crc.getValue() != buffer.getInt(SIZE - 4))
+            throw new IOException("Png header of " + file.getName() + " is corrupt");
+
+        int width = buffer.getInt(), height = buffer.getInt();
+        int bitDepth = buffer.get() & 0xFF, colourType = buffer.get() & 0xFF;
+        buffer.get(); //Compression, which is always deflate
+        buffer.get(); //Filter method, of which there is only one
+        boolean interlaced = buffer.get() != 0;
+
+        if (width <= 0 || height <= 0)
+            throw new IOException("Png header of " + file.getName() + " has an invalid size");
+
+        return new PngHeader(width, height, bitDepth, colourType, interlaced);
+    }
+
+    /**
+     * @return The amount of frames, if the png is a texture with frames stacked from top to bottom
+     */
+    int getFrameCount() {
+        return height / width;
+    }
+}
@@ -0,0 +1,266 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoder for the pngs textures are almost always saved as: 8-bit RGB & RGBA, and palettes of 1 to 8 bits, without
+ * interlacing. Pixels are inflated & unfiltered straight into packed ARGB, skipping ImageIO's plugin lookup,
+ * metadata parsing & colour conversion, which is most of the time spent on small textures.
+ * Other pngs are left to ImageIO, as are pngs with an ICC profile, which it might apply to the colours
+ */
+final class PngReader {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int RGB = 2, PALETTE = 3, RGBA = 6;
+    private static final int IHDR = 0x49484452, PLTE = 0x504C5445, TRNS = 0x74524E53, IDAT = 0x49444154,
+                             IEND = 0x49454E44, ICCP = 0x69434350;
+
+    //Inflaters keep native memory of their own, so they're reused by every png a thread decodes
+    private static final ThreadLocal<ArrayDeque<Inflater>> INFLATERS = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private PngReader() {}
+
+    /**
+     * @param file A png file
+     * @param rows The amount of rows to decode, from the top. If the png isn't taller, it's decoded as a whole
+     * @return The decoded rows, as packed ARGB using a buffer of the current thread's {@link BufferPool},
+     *         or null if the png is of a kind that's left to ImageIO
+     * @throws IOException If the file couldn't be read, or isn't a valid png
+     */
+    static BufferedImage read(File file, int rows) throws IOException {
+        ByteBuffer png = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+
+        for (byte b : SIGNATURE) {
+            if (!png.hasRemaining() || png.get() != b) throw new IOException(file.getName() + " isn't a png");
+        }
+
+        if (png.remaining() < 8 + 13 || png.getInt() != 13 || png.getInt() != IHDR)
+            throw new IOException(file.getName() + " doesn't start with a png header");
+
+        int width = png.getInt(), height = png.getInt();
+        int bitDepth = png.get() & 0xFF, colourType = png.get() & 0xFF;
+        png.get(); //Compression, which is always deflate
+        png.get(); //Filter method, of which there is only one
+        boolean interlaced = png.get() != 0;
+        png.getInt(); //Crc, not checked, just like ImageIO doesn't
+
+        if (width <= 0 || height <= 0)
+            throw new IOException("Png header of " + file.getName() + " has an invalid size");
+
+        boolean supported = colourType == PALETTE
+                ? bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8
+                : bitDepth == 8 && (colourType == RGB || colourType == RGBA);
+        if (interlaced || !supported) return null;
+
+        //Sources a plan doesn't read at all still get their first row decoded, so they're never empty
+        int decodedRows = rows < height ? Math.max(rows, 1) : height;
+
+        int channels = colourType == RGB ? 3 : colourType == RGBA ? 4 : 1;
+        int bytesPerPixel = Math.max(channels * bitDepth / 8, 1);
+        int rowBytes = (width * channels * bitDepth + 7) / 8;
+
+        int[] colours = null, palette = null;
+        int transparent = -1; //The RGB colour which is fully transparent in RGB pngs with a tRNS chunk
+
+        ArrayDeque<Inflater> inflaters = INFLATERS.get();
+        Inflater inflater = inflaters.isEmpty() ? new Inflater() : inflaters.pop();
+        int[] pixels = BufferPool.get().acquire(width * decodedRows);
+        boolean decoded = false;
+        try {
+            byte[] row = new byte[rowBytes + 1], previous = new byte[rowBytes + 1];
+            int y = 0, filled = 0;
+
+            while (y < decodedRows) {
+                if (png.remaining() < 8) throw new IOException(file.getName() + " ends before its last row");
+                int length = png.getInt(), type = png.getInt();
+                if (length < 0 || length > png.remaining() - 4)
+                    throw new IOException(file.getName() + " has a chunk longer than the file");
+
+                if (type == ICCP) return null;
+
+                if (type == PLTE) {
+                    colours = readPalette(png, length, bitDepth);
+                } else if (type == TRNS) {
+                    if (colourType == PALETTE && length > 0) {
+                        if (colours == null) throw new IOException(file.getName() + " has alpha before its palette");
+                        applyTransparency(png, length, colours);
+                    } else if (colourType == RGB && length == 6) {
+                        //16-bit samples, of which an 8-bit png only uses the low byte
+                        int r = png.getShort(png.position()) & 0xFFFF, g = png.getShort(png.position() + 2) & 0xFFFF;
+                        int b = png.getShort(png.position() + 4) & 0xFFFF;
+                        if (r < 256 && g < 256 && b < 256) transparent = r << 16 | g << 8 | b;
+                    }
+                } else if (type == IDAT) {
+                    if (colourType == PALETTE && palette == null) {
+                        if (colours == null) throw new IOException(file.getName() + " has no palette");
+                        palette = padPalette(colours, bitDepth);
+                    }
+
+                    inflater.setInput(png.array(), png.position(), length);
+                    while (y < decodedRows) {
+                        int n = inflater.inflate(row, filled, row.length - filled);
+                        filled += n;
+                        if (filled < row.length) {
+                            if (n > 0) continue;
+                            if (inflater.needsInput() || inflater.finished()) break; //On to the next IDAT chunk
+                            throw new IOException(file.getName() + " has corrupt image data");
+                        }
+
+                        unfilter(row, previous, bytesPerPixel);
+                        toArgb(row, pixels, y * width, width, colourType, bitDepth, palette, transparent);
+
+                        byte[] swap = previous;
+                        previous = row;
+                        row = swap;
+                        filled = 0;
+                        y++;
+                    }
+                    if (y < decodedRows && inflater.finished())
+                        throw new IOException(file.getName() + " ends before its last row");
+                } else if (type == IEND) {
+                    throw new IOException(file.getName() + " ends before its last row");
+                }
+
+                png.position(png.position() + length + 4); //Skips the data, if it wasn't read, & the crc
+            }
+
+            decoded = true;
+            return ImageAccess.wrap(pixels, width, decodedRows);
+        } catch (DataFormatException e) {
+            throw new IOException(file.getName() + " has corrupt image data: " + e.getMessage());
+        } finally {
+            if (!decoded) BufferPool.get().release(pixels);
+            inflater.reset();
+            inflaters.push(inflater);
+        }
+    }
+
+    /**
+     * Reads a PLTE chunk as opaque ARGB colours. Like ImageIO, it's rounded up to 2, 4, 16 or 256 colours with black
+     *
+     * @return The palette, which may be shorter than the bit depth allows
+     */
+    private static int[] readPalette(ByteBuffer png, int length, int bitDepth) throws IOException {
+        int count = Math.min(length / 3, 1 << bitDepth);
+        if (count == 0 || length % 3 != 0) throw new IOException("Invalid png palette");
+
+        int[] colours = new int[count > 16 ? 256 : count > 4 ? 16 : count > 2 ? 4 : 2];
+        Arrays.fill(colours, 0xFF000000);
+        for (int i = 0, p = png.position(); i < count; i++, p += 3)
+            colours[i] = 0xFF000000 | (png.get(p) & 0xFF) << 16 | (png.get(p + 1) & 0xFF) << 8 | png.get(p + 2) & 0xFF;
+        return colours;
+    }
+
+    /**
+     * Applies the alpha values of a tRNS chunk to the palette. Colours without one stay opaque
+     */
+    private static void applyTransparency(ByteBuffer png, int length, int[] colours) {
+        for (int i = 0; i < length && i < colours.length; i++)
+            colours[i] = (png.get(png.position() + i) & 0xFF) << 24 | colours[i] & 0xFFFFFF;
+    }
+
+    /**
+     * Pads a palette to every index the bit depth allows, with the opaque colour of its last entry like ImageIO does,
+     * so indices past the end of the palette don't need a check
+     */
+    private static int[] padPalette(int[] colours, int bitDepth) {
+        int[] palette = Arrays.copyOf(colours, Math.max(1 << bitDepth, colours.length));
+        Arrays.fill(palette, colours.length, palette.length, 0xFF000000 | colours[colours.length - 1]);
+        return palette;
+    }
+
+    /**
+     * Reverses the filter of a row in place
+     *
+     * @param row The filter type, followed by the filtered bytes of the row
+     * @param previous The unfiltered row above, which is all zeros above the first row
+     * @param bpp The amount of bytes per pixel, at least 1
+     */
+    private static void unfilter(byte[] row, byte[] previous, int bpp) throws IOException {
+        int length = row.length;
+
+        switch (row[0]) {
+            case 0:
+                break;
+            case 1:
+                for (int i = 1 + bpp; i < length; i++)
+                    row[i] += row[i - bpp];
+                break;
+            case 2:
+                for (int i = 1; i < length; i++)
+                    row[i] += previous[i];
+                break;
+            case 3:
+                for (int i = 1; i < length; i++) {
+                    int left = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (left + (previous[i] & 0xFF)) >>> 1;
+                }
+                break;
+            case 4:
+                for (int i = 1; i < length; i++) {
+                    int a = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = previous[i] & 0xFF;
+                    int c = i > bpp ? previous[i - bpp] & 0xFF : 0;
+                    row[i] += paeth(a, b, c);
+                }
+                break;
+            default:
+                throw new IOException("Invalid png filter type: " + row[0]);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Converts an unfiltered row to packed ARGB
+     *
+     * @param row The filter type, followed by the unfiltered bytes of the row
+     * @param pixels The pixels the row is written to
+     * @param offset The index of the row's first pixel
+     */
+    private static void toArgb(byte[] row, int[] pixels, int offset, int width, int colourType, int bitDepth,
+                               int[] palette, int transparent) {
+        switch (colourType) {
+            case RGBA:
+                for (int x = 0, i = 1; x < width; x++, i += 4) {
+                    pixels[offset + x] = (row[i + 3] & 0xFF) << 24 | (row[i] & 0xFF) << 16
+                            | (row[i + 1] & 0xFF) << 8 | row[i + 2] & 0xFF;
+                }
+                break;
+            case RGB:
+                for (int x = 0, i = 1; x < width; x++, i += 3) {
+                    int rgb = (row[i] & 0xFF) << 16 | (row[i + 1] & 0xFF) << 8 | row[i + 2] & 0xFF;
+                    pixels[offset + x] = rgb == transparent ? rgb : 0xFF000000 | rgb;
+                }
+                break;
+            default:
+                if (bitDepth == 8) {
+                    for (int x = 0; x < width; x++)
+                        pixels[offset + x] = palette[row[x + 1] & 0xFF];
+                    break;
+                }
+
+                //Several indices per byte, with the leftmost pixel in the highest bits
+                int perByte = 8 / bitDepth, mask = (1 << bitDepth) - 1;
+                for (int x = 0; x < width; x++) {
+                    int shift = 8 - bitDepth * (x % perByte + 1);
+                    pixels[offset + x] = palette[(row[x / perByte + 1] >>> shift) & mask];
+                }
+        }
+    }
+}
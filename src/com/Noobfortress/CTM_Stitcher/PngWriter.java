@@ -0,0 +1,481 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Incremental encoder for 8-bit RGBA pngs. Rows are filtered & compressed as soon as they're written,
+ * so an image never has to be in memory as a whole.
+ * With separate frames, every frame of an animation is compressed on its own, so the compressed frames of one png
+ * can be copied into another without being compressed again, see {@link FrameIndex}
+ */
+final class PngWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    //Deflaters keep native memory of their own, so they're reused by every png a thread writes
+    private static final ThreadLocal<ArrayDeque<Deflater>> DEFLATERS = ThreadLocal.withInitial(ArrayDeque::new);
+    //Separate frames are compressed as raw deflate data, with the zlib header & checksum written by the writer itself
+    private static final ThreadLocal<ArrayDeque<Deflater>> RAW_DEFLATERS = ThreadLocal.withInitial(ArrayDeque::new);
+
+    //Any zlib header is valid, its level bits are only informative
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9C};
+    //An empty final deflate block, which ends the image data after the last frame
+    private static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+    /**
+     * The png filter applied to each row before compression.
+     * Cheaper filters encode faster, {@link #ADAPTIVE} usually gives the smallest files
+     */
+    enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /**
+         * Picks the filter with the smallest sum of absolute differences for each row
+         */
+        ADAPTIVE;
+
+        /**
+         * @param name The name of a filter, ignoring case
+         * @return The filter, or null if there is none with that name
+         */
+        static Filter byName(String name) {
+            for (Filter F : values()) {
+                if (F.toString().equalsIgnoreCase(name))
+                    return F;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * How stitched textures are encoded by the streaming writer
+     */
+    static final class Settings {
+        /**
+         * The default deflate level with adaptive filtering, used wherever no settings are given
+         */
+        static final Settings DEFAULT = new Settings(Deflater.DEFAULT_COMPRESSION, Filter.ADAPTIVE);
+
+        final int deflateLevel;
+        final Filter filter;
+        final boolean incremental;
+
+        /**
+         * @param deflateLevel The deflate level, from 0 (fastest) to 9 (smallest), or -1 for the default
+         * @param filter The row filter
+         */
+        Settings(int deflateLevel, Filter filter) {
+            this(deflateLevel, filter, false);
+        }
+
+        /**
+         * @param deflateLevel The deflate level, from 0 (fastest) to 9 (smallest), or -1 for the default
+         * @param filter The row filter
+         * @param incremental Whether stitched textures written to a file keep a {@link FrameIndex},
+         *                    so only frames whose inputs changed are stitched & compressed again
+         */
+        Settings(int deflateLevel, Filter filter, boolean incremental) {
+            this.deflateLevel = deflateLevel;
+            this.filter = filter;
+            this.incremental = incremental;
+        }
+    }
+
+    /**
+     * Where a separately compressed frame is in a png
+     */
+    static final class Frame {
+        /**
+         * The position of the frame's first IDAT chunk in the png & the length of all its chunks, in bytes
+         */
+        final long offset, length;
+        /**
+         * The Adler-32 checksum of the frame's filtered rows
+         */
+        final int adler;
+        /**
+         * The length of the frame's filtered rows, before compression
+         */
+        final long size;
+
+        Frame(long offset, long length, int adler, long size) {
+            this.offset = offset;
+            this.length = length;
+            this.adler = adler;
+            this.size = size;
+        }
+    }
+
+    private final DataOutputStream out;
+    private final Deflater deflater;
+    private final ChunkOutputStream chunks;
+    private final DeflaterOutputStream idat;
+    private final Filter filter;
+    private final int width, height;
+
+    private byte[] row, previous;
+    private final byte[][] filtered;
+    private int rowsWritten;
+    private boolean closed;
+
+    //The frames written so far & the one being written, if frames are compressed separately
+    private final List<Frame> frames;
+    private final Adler32 frameAdler = new Adler32();
+    private long frameOffset, frameSize;
+    private byte[] flushed;
+
+    /**
+     * Writes the png header. The image data follows through {@link #writeRows(int[], int, int)}
+     *
+     * @param out The stream the png is written to. It's closed when the writer is closed
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param settings The deflate level & filter to use
+     * @throws IOException If the header couldn't be written
+     */
+    PngWriter(OutputStream out, int width, int height, Settings settings) throws IOException {
+        this(out, width, height, settings, false);
+    }
+
+    /**
+     * Writes the png header. The image data follows through {@link #writeRows(int[], int, int)},
+     * and with separate frames through {@link #endFrame()} & {@link #copyFrame(byte[], Frame)} as well
+     *
+     * @param out The stream the png is written to. It's closed when the writer is closed
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param settings The deflate level & filter to use
+     * @param separateFrames Whether every frame is compressed on its own, which makes the png slightly bigger
+     * @throws IOException If the header couldn't be written
+     */
+    PngWriter(OutputStream out, int width, int height, Settings settings, boolean separateFrames)
+            throws IOException {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.filter = settings.filter;
+
+        this.row = new byte[width * 4];
+        this.previous = new byte[width * 4];
+        this.filtered = new byte[Filter.ADAPTIVE.ordinal()][width * 4 + 1];
+
+        this.out.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = 8; //Bit depth
+        header[9] = 6; //Colour type: RGBA
+        writeChunk("IHDR", header, header.length);
+
+        ArrayDeque<Deflater> deflaters = (separateFrames ? RAW_DEFLATERS : DEFLATERS).get();
+        this.deflater = deflaters.isEmpty() ? new Deflater(Deflater.DEFAULT_COMPRESSION, separateFrames)
+                                            : deflaters.pop();
+        deflater.setLevel(settings.deflateLevel);
+        this.chunks = new ChunkOutputStream();
+        this.idat = new DeflaterOutputStream(chunks, deflater, CHUNK_SIZE);
+
+        this.frames = separateFrames ? new ArrayList<>() : null;
+        if (separateFrames) {
+            writeChunk("IDAT", ZLIB_HEADER, ZLIB_HEADER.length);
+            frameOffset = this.out.size();
+        }
+    }
+
+    /**
+     * Writes the next rows of the image
+     *
+     * @param pixels Packed ARGB pixels, row by row, exactly as wide as the image
+     * @param offset The index of the first pixel to write
+     * @param rows The amount of rows to write
+     * @throws IOException If the rows couldn't be written
+     */
+    void writeRows(int[] pixels, int offset, int rows) throws IOException {
+        if (rowsWritten + rows > height)
+            throw new IllegalStateException("Png has " + height + " rows, tried writing " + (rowsWritten + rows));
+
+        for (int r = 0; r < rows; r++, offset += width) {
+            for (int x = 0, i = 0; x < width; x++) {
+                int argb = pixels[offset + x];
+                row[i++] = (byte) (argb >> 16);
+                row[i++] = (byte) (argb >> 8);
+                row[i++] = (byte) argb;
+                row[i++] = (byte) (argb >>> 24);
+            }
+
+            byte[] line;
+            if (frames != null && frameSize == 0) {
+                //The first row of a separate frame can't depend on the frame above, which might be replaced
+                line = filter == Filter.NONE ? filter(Filter.NONE)
+                        : filter == Filter.ADAPTIVE ? filterAdaptive(Filter.UP.ordinal()) : filter(Filter.SUB);
+            } else {
+                line = filter == Filter.ADAPTIVE ? filterAdaptive(Filter.ADAPTIVE.ordinal()) : filter(filter);
+            }
+            idat.write(line, 0, line.length);
+
+            if (frames != null) {
+                frameAdler.update(line, 0, line.length);
+                frameSize += line.length;
+            }
+
+            byte[] swap = previous;
+            previous = row;
+            row = swap;
+        }
+        rowsWritten += rows;
+    }
+
+    /**
+     * Ends a separately compressed frame, after its rows were written
+     *
+     * @throws IOException If the frame couldn't be written
+     */
+    void endFrame() throws IOException {
+        if (frames == null) throw new IllegalStateException("Png doesn't have separate frames");
+        if (frameSize == 0) return;
+
+        //A full flush ends the frame on a byte boundary & forgets the data before it,
+        //so the frame decompresses the same after any other frame
+        if (flushed == null) flushed = new byte[CHUNK_SIZE];
+        int n;
+        do {
+            n = deflater.deflate(flushed, 0, flushed.length, Deflater.FULL_FLUSH);
+            chunks.write(flushed, 0, n);
+        } while (n == flushed.length);
+        chunks.flushChunk();
+
+        addFrame(out.size() - frameOffset, (int) frameAdler.getValue(), frameSize);
+        frameAdler.reset();
+        frameSize = 0;
+    }
+
+    /**
+     * Copies a separately compressed frame from another png with the same width & settings, instead of writing its
+     * rows. Only possible between frames
+     *
+     * @param png The other png
+     * @param frame Where the frame is in the other png
+     * @throws IOException If the frame couldn't be written
+     */
+    void copyFrame(byte[] png, Frame frame) throws IOException {
+        if (frames == null) throw new IllegalStateException("Png doesn't have separate frames");
+        if (frameSize != 0) throw new IllegalStateException("Frames can only be copied after a frame has ended");
+
+        int rows = (int) (frame.size / (width * 4 + 1));
+        if (rowsWritten + rows > height)
+            throw new IllegalStateException("Png has " + height + " rows, tried writing " + (rowsWritten + rows));
+
+        out.write(png, (int) frame.offset, (int) frame.length);
+        addFrame(frame.length, frame.adler, frame.size);
+        rowsWritten += rows;
+    }
+
+    private void addFrame(long length, int adler, long size) {
+        frames.add(new Frame(frameOffset, length, adler, size));
+        frameOffset += length;
+    }
+
+    /**
+     * @return Where every separately compressed frame written so far is in the png
+     */
+    List<Frame> getFrames() {
+        return frames;
+    }
+
+    /**
+     * Finishes the image data & writes the end of the png. Closing it again has no effect
+     *
+     * @throws IOException If the png couldn't be finished, or not all rows were written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            if (rowsWritten != height)
+                throw new IOException("Png has " + height + " rows, but only " + rowsWritten + " were written");
+
+            if (frames == null) {
+                idat.finish();
+                idat.flush();
+            } else {
+                endFrame();
+
+                //The checksum of all frames is combined from theirs, as copied frames aren't decompressed
+                long adler = 1;
+                for (Frame frame : frames)
+                    adler = combineAdler(adler, frame.adler & 0xFFFFFFFFL, frame.size);
+
+                byte[] end = new byte[FINAL_BLOCK.length + 4];
+                System.arraycopy(FINAL_BLOCK, 0, end, 0, FINAL_BLOCK.length);
+                writeInt(end, FINAL_BLOCK.length, (int) adler);
+                writeChunk("IDAT", end, end.length);
+            }
+            writeChunk("IEND", new byte[0], 0);
+        } finally {
+            deflater.reset();
+            (frames == null ? DEFLATERS : RAW_DEFLATERS).get().push(deflater);
+            out.close();
+        }
+    }
+
+    /**
+     * Combines Adler-32 checksums like zlib's adler32_combine
+     *
+     * @param first The checksum of the first part of the data
+     * @param second The checksum of the second part
+     * @param length The length of the second part, in bytes
+     * @return The checksum of both parts together
+     */
+    static long combineAdler(long first, long second, long length) {
+        final long base = 65521;
+        long rem = length % base;
+        long sum1 = first & 0xFFFF;
+        long sum2 = rem * sum1 % base;
+        sum1 += (second & 0xFFFF) + base - 1;
+        sum2 += ((first >>> 16) & 0xFFFF) + ((second >>> 16) & 0xFFFF) + base - rem;
+
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | sum2 << 16;
+    }
+
+    /**
+     * @param filters The amount of filters to pick from, starting at {@link Filter#NONE}
+     */
+    private byte[] filterAdaptive(int filters) {
+        byte[] best = null;
+        long bestSum = Long.MAX_VALUE;
+
+        for (int f = 0; f < filters; f++) {
+            byte[] line = filter(Filter.values()[f]);
+
+            long sum = 0;
+            for (int i = 1; i < line.length && sum < bestSum; i++)
+                sum += Math.abs(line[i]); //Filtered bytes are read as signed, so small differences count little
+
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = line;
+            }
+        }
+        return best;
+    }
+
+    private byte[] filter(Filter f) {
+        byte[] line = filtered[f.ordinal()];
+        line[0] = (byte) f.ordinal();
+
+        switch (f) {
+            case NONE:
+                System.arraycopy(row, 0, line, 1, row.length);
+                break;
+            case SUB:
+                for (int i = 0; i < row.length; i++)
+                    line[i + 1] = (byte) (row[i] - (i < 4 ? 0 : row[i - 4]));
+                break;
+            case UP:
+                for (int i = 0; i < row.length; i++)
+                    line[i + 1] = (byte) (row[i] - previous[i]);
+                break;
+            case AVERAGE:
+                for (int i = 0; i < row.length; i++) {
+                    int left = i < 4 ? 0 : row[i - 4] & 0xFF;
+                    line[i + 1] = (byte) (row[i] - ((left + (previous[i] & 0xFF)) >>> 1));
+                }
+                break;
+            case PAETH:
+                for (int i = 0; i < row.length; i++) {
+                    int a = i < 4 ? 0 : row[i - 4] & 0xFF;
+                    int b = previous[i] & 0xFF;
+                    int c = i < 4 ? 0 : previous[i - 4] & 0xFF;
+                    line[i + 1] = (byte) (row[i] - paeth(a, b, c));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Not a single filter: " + f);
+        }
+        return line;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void writeInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Collects compressed image data into IDAT chunks of at most {@link #CHUNK_SIZE} bytes
+     */
+    private final class ChunkOutputStream extends OutputStream {
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int size;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) flushChunk();
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == buffer.length) flushChunk();
+
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushChunk();
+            out.flush();
+        }
+
+        private void flushChunk() throws IOException {
+            if (size == 0) return;
+            writeChunk("IDAT", buffer, size);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What a stitched texture previews: the ctm method & the arrangement of blocks it's applied to.
+ * Copy plans are compiled once per texture size & reused for every texture of that size
+ */
+final class Preview {
+
+    /**
+     * A full 3x3 of blocks using the compact method, the layout stitched textures always had
+     */
+    static final Preview DEFAULT = new Preview(CtmLayouts.COMPACT, Grid.DEFAULT);
+
+    private final CtmLayout layout;
+    private final Grid grid;
+    private final Map<String, CopyPlan> plans = new ConcurrentHashMap<>();
+
+    /**
+     * @param layout The ctm method
+     * @param grid The blocks to stitch
+     */
+    Preview(CtmLayout layout, Grid grid) {
+        this.layout = layout;
+        this.grid = grid;
+    }
+
+    CtmLayout getLayout() {
+        return layout;
+    }
+
+    Grid getGrid() {
+        return grid;
+    }
+
+    /**
+     * @param regular The header of the regular texture, which has to be valid on its own
+     * @param ctm The header of the ctm texture
+     * @return A description of the problem, or null if the ctm texture fits the method
+     */
+    String validate(PngHeader regular, PngHeader ctm) {
+        return layout.validate(regular.width, regular.getFrameCount(), ctm.width, ctm.height);
+    }
+
+    /**
+     * @param regular The header of the regular texture
+     * @param ctm The header of the ctm texture, or null if none is used
+     * @return The copy plan stitching a single frame of the given textures
+     */
+    CopyPlan getPlan(PngHeader regular, PngHeader ctm) {
+        return ctm == null
+                ? getPlan(regular.width, regular.height, 0, 0)
+                : getPlan(regular.width, regular.height, ctm.width, ctm.height);
+    }
+
+    /**
+     * @param regular The regular texture
+     * @param ctm The ctm texture, or null if none is used
+     * @return The copy plan stitching a single frame of the given textures
+     */
+    CopyPlan getPlan(BufferedImage regular, BufferedImage ctm) {
+        return ctm == null
+                ? getPlan(regular.getWidth(), regular.getHeight(), 0, 0)
+                : getPlan(regular.getWidth(), regular.getHeight(), ctm.getWidth(), ctm.getHeight());
+    }
+
+    /**
+     * @param ctmWidth The width of the ctm texture, or 0 if none is used
+     */
+    private CopyPlan getPlan(int tileSize, int height, int ctmWidth, int ctmHeight) {
+        if (ctmWidth == 0)
+            return plans.computeIfAbsent(tileSize + "", key -> CtmLayouts.compilePlain(tileSize, grid));
+
+        int ctmFrameHeight = ctmHeight / (height / tileSize);
+        return plans.computeIfAbsent(tileSize + ":" + ctmWidth + "x" + ctmFrameHeight,
+                                     key -> layout.compile(tileSize, ctmWidth, ctmFrameHeight, grid));
+    }
+
+    /**
+     * @return How stitched files are told apart: the grid, preceded by the method unless it's compact.
+     *         Grids with holes are followed by their rows, like "3x3-111.101.111"
+     */
+    String getSuffix() {
+        String blocks = grid.toString().replace(':', '-').replace(',', '.');
+        return layout == CtmLayouts.COMPACT ? blocks : layout.getName() + "-" + blocks;
+    }
+
+    /**
+     * @return The method & the full grid. Unique for every preview, so it's part of every cache key
+     */
+    @Override
+    public String toString() {
+        return layout.getName() + "-" + grid;
+    }
+}
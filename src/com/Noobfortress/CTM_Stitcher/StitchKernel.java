@@ -0,0 +1,40 @@
+package com.Noobfortress.CTM_Stitcher;
+
+/**
+ * Stitches textures by copying rows of packed ARGB pixels straight from the source to the destination buffer
+ */
+final class StitchKernel {
+
+    private StitchKernel() {}
+
+    /**
+     * Stitches a single frame of a texture by running a copy plan
+     *
+     * @param plan The copy plan of the layout, compiled for the size of the textures
+     * @param regular The pixels of the regular texture
+     * @param ctm The pixels of the ctm texture, or null if the plan doesn't copy from it
+     * @param frame The frame of the regular & ctm texture to stitch
+     * @param out The pixels of the output, which is as wide as a stitched frame
+     * @param outFrame The frame of the output the stitched frame is written to
+     */
+    static void stitchFrame(CopyPlan plan, int[] regular, int[] ctm, int frame, int[] out, int outFrame) {
+        int outWidth = plan.getWidth(), outBase = outFrame * outWidth * plan.getHeight();
+        int regularWidth = plan.getSourceWidth(CopyPlan.REGULAR), ctmWidth = plan.getSourceWidth(CopyPlan.CTM);
+        int regularBase = frame * plan.getSourceFrameSize(CopyPlan.REGULAR);
+        int ctmBase = frame * plan.getSourceFrameSize(CopyPlan.CTM);
+
+        int[] copies = plan.getCopies();
+
+        for (int i = 0, end = plan.getCount() * 4; i < end; i += 4) {
+            boolean fromCtm = copies[i] == CopyPlan.CTM;
+
+            int[] src = fromCtm ? ctm : regular;
+            int srcWidth = fromCtm ? ctmWidth : regularWidth;
+            int srcPos = (fromCtm ? ctmBase : regularBase) + copies[i + 1];
+            int dstPos = outBase + copies[i + 2], size = copies[i + 3];
+
+            for (int row = 0; row < size; row++, srcPos += srcWidth, dstPos += outWidth)
+                System.arraycopy(src, srcPos, out, dstPos, size);
+        }
+    }
+}
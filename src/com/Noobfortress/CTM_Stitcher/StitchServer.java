@@ -0,0 +1,298 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import javax.imageio.ImageIO;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one warm process stitching textures on request, so previews don't pay for JVM startup.
+ * Jobs arrive as one json object per line, over stdin or a socket on the loopback address:
+ * <pre>
+ * {"id": 1, "regular": "stone.png", "ctm": "stone-ctm.png", "layout": "compact", "grid": "3x3", "return": "path"}
+ * </pre>
+ * "ctm", "layout", "grid" & "outputDir" are optional. "layout" & "grid" take the same values as -layout & -grid,
+ * and default to those the server was started with. The old layout "ctm-3x3" is still accepted as the compact
+ * method in a 3x3 grid, unless the job asks for another grid. "return" is either "path", to write the stitched
+ * texture next to the regular texture (or into "outputDir") and reply with its path, or "bytes" to reply with
+ * the base64 encoded png. Every job gets one reply line, carrying the same id:
+ * <pre>
+ * {"id": 1, "ok": true, "output": "/pack/stone-3x3.png", "ms": 3}
+ * {"id": 2, "ok": false, "error": "Width/Height of regular image isn't a power of 2", "ms": 1}
+ * </pre>
+ * Jobs run concurrently, so replies can come in a different order than the jobs
+ */
+final class StitchServer {
+
+    private final PngWriter.Settings pngSettings;
+    private final OutputCache cache;
+    private final Preview preview;
+    private final Composite composite;
+    private final Metrics metrics;
+    private final ThreadPoolExecutor executor;
+
+    //Previews keep their compiled copy plans, so every combination asked for is only compiled once
+    private final Map<String, Preview> previews = new ConcurrentHashMap<>();
+
+    /**
+     * @param pngSettings The settings of the streaming png writer, or null to write through ImageIO
+     * @param cache The cache unchanged textures are copied from, or null to always stitch
+     * @param preview The preview used by jobs which don't ask for a layout or grid
+     * @param composite The tint & overlay drawn onto every stitched texture, or null if there are none
+     * @param metrics The metrics every job is recorded in, written whenever a client disconnects.
+     *                Null if none are kept
+     */
+    StitchServer(PngWriter.Settings pngSettings, OutputCache cache, Preview preview, Composite composite,
+                 Metrics metrics) {
+        this.pngSettings = pngSettings;
+        this.cache = cache;
+        this.preview = preview;
+        this.composite = composite;
+        this.metrics = metrics;
+
+        //Once the queue is full, the reading thread runs jobs itself & stops reading. That pushes back on clients
+        int threads = Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4),
+                job -> {
+                    Thread thread = new Thread(job, "stitch-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+
+        ImageIO.setUseCache(false);
+    }
+
+    /**
+     * Serves jobs from stdin, replying on stdout, until stdin is closed.
+     * Anything else written to stdout is moved to stderr, so it doesn't get mixed into the replies
+     */
+    void serveStdin() {
+        PrintStream replies = System.out;
+        System.setOut(System.err);
+
+        serve(System.in, replies);
+        System.setOut(replies);
+    }
+
+    /**
+     * Serves jobs from every connection to the given port on the loopback address, until the program is stopped
+     *
+     * @param port The port
+     */
+    void serveSocket(int port) {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Listening for stitch jobs on " + server.getLocalSocketAddress());
+
+            while (true) {
+                Socket socket = server.accept();
+
+                Thread connection = new Thread(() -> {
+                    try (Socket s = socket) {
+                        serve(s.getInputStream(), s.getOutputStream());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }, "stitch-connection-" + socket.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void serve(InputStream in, OutputStream out) {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        Connection connection = new Connection(writer);
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+
+                String request = line;
+                connection.expectReply();
+                executor.execute(() -> connection.reply(handle(request)));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        connection.awaitReplies();
+        if (metrics != null) metrics.write();
+    }
+
+    /**
+     * @param line A single json job
+     * @return The reply to the job
+     */
+    private Map<String, Object> handle(String line) {
+        long start = System.nanoTime();
+        Map<String, Object> reply = new LinkedHashMap<>();
+
+        try {
+            Object parsed = Json.parse(line);
+            if (!(parsed instanceof Map)) throw new IllegalArgumentException("Job isn't a json object");
+
+            Map<?, ?> request = (Map<?, ?>) parsed;
+            reply.put("id", request.get("id"));
+            reply.put("ok", false);
+
+            String error = run(request, reply);
+            reply.put("ok", error == null);
+            if (error != null) reply.put("error", error);
+        } catch (IllegalArgumentException e) {
+            reply.put("ok", false);
+            reply.put("error", e.getMessage());
+        } catch (RuntimeException | Error e) {
+            //Even running out of memory on a huge texture is replied to, or the client would wait for it forever
+            reply.put("ok", false);
+            reply.put("error", e.toString());
+        }
+
+        reply.put("ms", (System.nanoTime() - start) / 1_000_000);
+        return reply;
+    }
+
+    /**
+     * @return A description of the problem, or null if the texture was stitched
+     */
+    private String run(Map<?, ?> request, Map<String, Object> reply) {
+        File regular = getFile(request, "regular");
+        if (regular == null || !regular.isFile()) return "Missing or invalid \"regular\" texture";
+
+        File ctm = null;
+        if (request.containsKey("ctm")) {
+            ctm = getFile(request, "ctm");
+            if (ctm == null || !ctm.isFile()) return "Invalid \"ctm\" texture";
+        }
+
+        Preview preview = getPreview(request.get("layout"), request.get("grid"));
+        if (preview == null) return "Unknown layout: " + request.get("layout");
+
+        Object returns = request.get("return");
+        boolean bytes = "bytes".equals(returns);
+        if (returns != null && !bytes && !"path".equals(returns))
+            return "\"return\" has to be either \"path\" or \"bytes\"";
+
+        File output = null;
+        if (!bytes) {
+            File outputDir = request.containsKey("outputDir")
+                    ? getFile(request, "outputDir")
+                    : regular.getParentFile();
+            if (outputDir == null) return "Invalid \"outputDir\"";
+
+            output = Main.getOutputFile(regular, outputDir, preview);
+        }
+
+        TextureJob job = new TextureJob(regular.getName(), regular, ctm, output, pngSettings, cache, preview,
+                                        composite);
+        String error;
+        try {
+            error = job.call();
+        } finally {
+            if (metrics != null) metrics.record(job.getMetrics());
+        }
+        if (error != null) return error;
+
+        if (bytes) reply.put("png", Base64.getEncoder().encodeToString(job.getPng()));
+        else reply.put("output", output.getAbsolutePath());
+
+        if (job.isCached()) reply.put("cached", true);
+        return null;
+    }
+
+    /**
+     * @param layout The "layout" of a job, or null to use the server's
+     * @param grid The "grid" of a job, or null to use the server's
+     * @return The preview, or null if the layout is unknown
+     * @throws IllegalArgumentException If the grid is invalid
+     */
+    private Preview getPreview(Object layout, Object grid) {
+        if (layout == null && grid == null) return preview;
+        if ((layout != null && !(layout instanceof String)) || (grid != null && !(grid instanceof String)))
+            throw new IllegalArgumentException("\"layout\" & \"grid\" have to be strings");
+
+        //Jobs from before layouts could be picked name the only preview there was, whatever the server's grid
+        if ("ctm-3x3".equals(layout)) {
+            if (grid == null) return Preview.DEFAULT;
+            layout = CtmLayouts.COMPACT.getName();
+        }
+
+        CtmLayout method = layout == null ? preview.getLayout() : CtmLayouts.byName((String) layout);
+        if (method == null) return null;
+
+        Grid blocks = grid == null ? preview.getGrid() : Grid.parse((String) grid);
+        return previews.computeIfAbsent(method.getName() + "-" + blocks, key -> new Preview(method, blocks));
+    }
+
+    private static File getFile(Map<?, ?> request, String key) {
+        Object path = request.get(key);
+        if (!(path instanceof String)) return null;
+
+        File raw = new File((String) path);
+        return raw.isAbsolute() ? raw : new File(new File("").getAbsolutePath(), (String) path);
+    }
+
+    /**
+     * Writes the replies of one client, one line each
+     */
+    private static final class Connection {
+        private final Writer writer;
+        private int pending;
+
+        private Connection(Writer writer) {
+            this.writer = writer;
+        }
+
+        private synchronized void expectReply() {
+            pending++;
+        }
+
+        private synchronized void reply(Map<String, Object> reply) {
+            try {
+                writer.write(Json.write(reply));
+                writer.write('\n');
+                writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                pending--;
+                notifyAll();
+            }
+        }
+
+        private synchronized void awaitReplies() {
+            //Replies still running when the client stops sending jobs are written before the connection closes
+            while (pending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stitches a single texture: reads its inputs, validates them, stitches & writes the result.
+ * Shared by batch runs, watch mode & the stitch server
+ */
+final class TextureJob {
+
+    private final String name;
+    private final File regular, ctm, output;
+    private final PngWriter.Settings pngSettings;
+    private final OutputCache cache;
+    private final Preview preview;
+    private final Composite composite;
+
+    private long nanos, started;
+    private boolean cached, keepImage;
+    private byte[] png;
+    private BufferedImage image;
+    private int frameCount;
+    private JobMetrics metrics;
+
+    //Carried from decoding to stitching & writing, which are separate stages in a pipeline
+    private McMeta animation;
+    private String key;
+    private CopyPlan plan;
+    private BufferedImage regularImage, ctmImage;
+    private Compositor compositor;
+    //The hash of every frame's inputs, if the stitched texture is written incrementally by the encode stage
+    private long[] frameHashes;
+    //The pools of the threads which decoded the inputs & stitched the image, see BufferPool
+    private BufferPool inputPool, imagePool;
+
+    /**
+     * @param name How the texture is called in summaries
+     * @param regular The regular texture
+     * @param ctm The ctm texture, or null if none is used
+     * @param output The file the stitched texture is written to.
+     *               If null, the stitched png is kept in memory instead, see {@link #getPng()}
+     * @param pngSettings The settings of the streaming png writer, or null to write through ImageIO
+     * @param cache The cache unchanged textures are copied from, or null to always stitch
+     * @param preview The preview the texture is stitched into
+     * @param composite The tint & overlay drawn onto the stitched texture, or null if there are none
+     */
+    TextureJob(String name, File regular, File ctm, File output, PngWriter.Settings pngSettings, OutputCache cache,
+               Preview preview, Composite composite) {
+        this.name = name;
+        this.regular = regular;
+        this.ctm = ctm;
+        this.output = output;
+        this.pngSettings = pngSettings;
+        this.cache = cache;
+        this.preview = preview;
+        this.composite = composite;
+    }
+
+    /**
+     * Makes the job keep the stitched texture in memory instead of writing it, see {@link #getImage()}.
+     * Nothing is written to the output file or the cache
+     */
+    void keepImage() {
+        keepImage = true;
+    }
+
+    /**
+     * @return The files this job reads: the regular texture, its animation settings, the ctm texture & the overlay
+     */
+    List<File> getInputs() {
+        List<File> inputs = new ArrayList<>(3);
+        inputs.add(regular);
+        inputs.add(McMeta.getFile(regular));
+        if (ctm != null) inputs.add(ctm);
+        if (composite != null) inputs.addAll(composite.getInputs());
+        return inputs;
+    }
+
+    /**
+     * Checks the textures of the job from their headers & animation settings alone, without decoding anything
+     *
+     * @return Every problem found, which is empty if the texture can be stitched
+     */
+    List<String> check() {
+        List<String> problems = new ArrayList<>();
+
+        PngHeader regularHeader = null, ctmHeader = null;
+        McMeta animation = null;
+        try {
+            regularHeader = PngHeader.read(regular);
+        } catch (IOException e) {
+            problems.add(e.getMessage());
+        }
+        try {
+            if (ctm != null) ctmHeader = PngHeader.read(ctm);
+        } catch (IOException e) {
+            problems.add(e.getMessage());
+        }
+        try {
+            animation = McMeta.read(regular);
+        } catch (IOException e) {
+            problems.add(e.getMessage());
+        }
+
+        if (regularHeader != null) {
+            problems.addAll(Main.check(regularHeader, ctmHeader, animation, preview));
+
+            String error = composite == null ? null : composite.validate(regularHeader, ctmHeader);
+            if (error != null) problems.add(error);
+        }
+        return problems;
+    }
+
+    /**
+     * Runs the job, timing it
+     *
+     * @return A description of the problem, or null if the texture was stitched
+     */
+    String call() {
+        start();
+        String error = null;
+        try {
+            error = stitch();
+            return error;
+        } catch (RuntimeException | Error e) {
+            //Recorded as failed, whoever runs the job still gets what it threw
+            error = e.toString();
+            throw e;
+        } finally {
+            finish(error);
+        }
+    }
+
+    /**
+     * First stage of a run in a {@link Pipeline}: validates the texture & decodes it
+     *
+     * @return Whether the job goes on to {@link #stitchStage()}. If not, it's finished, see {@link #getError()}
+     */
+    boolean decodeStage() {
+        start();
+        String error = read();
+        if (error == null && !cached) return true;
+
+        finish(error);
+        return false;
+    }
+
+    /**
+     * Second stage of a run in a {@link Pipeline}: stitches the decoded texture
+     *
+     * @return Whether the job goes on to {@link #encodeStage()}, which it doesn't if it keeps the stitched texture
+     */
+    boolean stitchStage() {
+        try {
+            stitchImage();
+
+            //The inputs are given back before encoding, so their frames are hashed right away
+            frameHashes = isIncremental() ? FrameIndex.hashFrames(plan, ImageAccess.getPixels(regularImage),
+                    ctmImage == null ? null : ImageAccess.getPixels(ctmImage), compositor, frameCount) : null;
+        } finally {
+            releaseInputs();
+        }
+        if (!keepImage) return true;
+
+        finish(null);
+        return false;
+    }
+
+    /**
+     * Last stage of a run in a {@link Pipeline}: encodes & writes the stitched texture
+     */
+    void encodeStage() {
+        String error;
+        try {
+            error = write();
+        } finally {
+            ImageAccess.release(image, imagePool);
+            image = null;
+        }
+        finish(error);
+    }
+
+    /**
+     * Ends a run in a {@link Pipeline} which threw, giving back the buffers it held
+     *
+     * @param e What the job threw
+     */
+    void abort(Throwable e) {
+        releaseInputs();
+        ImageAccess.release(image, imagePool);
+        image = null;
+        finish(e.toString());
+    }
+
+    private void start() {
+        metrics = new JobMetrics(name);
+        started = System.nanoTime();
+    }
+
+    private void finish(String error) {
+        nanos = System.nanoTime() - started;
+        metrics.error = error;
+        metrics.totalNanos = nanos;
+        metrics.cached = cached;
+    }
+
+    private String stitch() {
+        String error = read();
+        if (error != null || cached) return error;
+
+        try {
+            if (keepImage) {
+                stitchImage();
+                return null;
+            }
+
+            if (output == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                if (!encode(regularImage, ctmImage, frameCount, plan, compositor, bytes))
+                    return "Couldn't encode stitched texture";
+
+                png = bytes.toByteArray();
+                metrics.bytesWritten = png.length;
+                return null;
+            }
+
+            if (!encode(regularImage, ctmImage, frameCount, plan, compositor, output))
+                return "Couldn't write stitched texture";
+            metrics.bytesWritten = output.length();
+        } finally {
+            releaseInputs();
+        }
+        return store();
+    }
+
+    /**
+     * Validates the texture from its headers & decodes it, unless the stitched texture is copied from the cache
+     *
+     * @return A description of the problem, or null if the texture was decoded or copied from the cache
+     */
+    private String read() {
+        long start = System.nanoTime();
+        image = null;
+
+        //Textures are validated from their headers, so invalid ones are never decoded
+        PngHeader regularHeader, ctmHeader;
+        try {
+            regularHeader = PngHeader.read(regular);
+            ctmHeader = ctm != null ? PngHeader.read(ctm) : null;
+            animation = McMeta.read(regular);
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+
+        String error = Main.validate(regularHeader, ctmHeader, animation, preview);
+        if (error == null && composite != null) error = composite.validate(regularHeader, ctmHeader);
+        metrics.validateNanos = System.nanoTime() - start;
+        if (error != null) return error;
+
+        //Jobs in the same directory run at once, so one creating it mustn't make the others fail
+        if (output != null && !keepImage) {
+            File dir = output.getAbsoluteFile().getParentFile();
+            try {
+                Files.createDirectories(dir.toPath());
+            } catch (IOException e) {
+                return "Couldn't create output directory " + dir + ": " + e;
+            }
+        }
+
+        //Both hashing for the cache & decoding read every input as a whole
+        for (File input : getInputs())
+            metrics.bytesRead += input.length();
+
+        cached = false;
+        key = null;
+        if (cache != null && output != null && !keepImage) {
+            try {
+                key = cache.getKey(regular, ctm, preview, composite, pngSettings);
+            } catch (IOException e) {
+                return e.toString();
+            }
+
+            cached = cache.restore(key, output);
+            if (cached) {
+                metrics.bytesWritten = output.length();
+                return animation != null && !animation.write(output) ? "Couldn't write animation settings" : null;
+            }
+        }
+
+        plan = preview.getPlan(regularHeader, ctmHeader);
+        frameCount = regularHeader.getFrameCount();
+
+        start = System.nanoTime();
+        inputPool = BufferPool.get();
+        regularImage = Main.loadImage(regular, plan.getSourceRows(CopyPlan.REGULAR, frameCount));
+        if (regularImage == null) return "Couldn't read regular texture";
+
+        if (ctm != null) {
+            ctmImage = Main.loadImage(ctm, plan.getSourceRows(CopyPlan.CTM, frameCount));
+            if (ctmImage == null) {
+                releaseInputs();
+                return "Couldn't read ctm texture";
+            }
+        }
+        if (composite != null) {
+            compositor = composite.load(plan, frameCount);
+            if (compositor == null) {
+                releaseInputs();
+                return "Couldn't read overlay texture";
+            }
+        }
+        metrics.decodeNanos = System.nanoTime() - start;
+
+        metrics.buffer((long) regularImage.getWidth() * regularImage.getHeight());
+        if (ctmImage != null) metrics.buffer((long) ctmImage.getWidth() * ctmImage.getHeight());
+        metrics.pixelsCopied = plan.getPixelCount() * frameCount;
+        return null;
+    }
+
+    private void stitchImage() {
+        long start = System.nanoTime();
+        imagePool = BufferPool.get();
+        image = Main.stitch(regularImage, ctmImage, frameCount, plan, compositor);
+        metrics.stitchNanos = System.nanoTime() - start;
+        metrics.buffer((long) image.getWidth() * image.getHeight());
+    }
+
+    /**
+     * Writes the stitched image, with the animation settings next to it
+     *
+     * @return A description of the problem, or null if the texture was written
+     */
+    private String write() {
+        long start = System.nanoTime();
+        try {
+            if (output == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                if (!writeImage(bytes)) return "Couldn't encode stitched texture";
+
+                png = bytes.toByteArray();
+                metrics.bytesWritten = png.length;
+                return null;
+            }
+
+            if (!writeImage(output)) return "Couldn't write stitched texture";
+            metrics.bytesWritten = output.length();
+        } finally {
+            metrics.encodeNanos = System.nanoTime() - start;
+        }
+        return store();
+    }
+
+    /**
+     * @param target Either the output file, or the stream the png is kept in
+     */
+    private boolean writeImage(Object target) {
+        if (frameHashes != null && target instanceof File) {
+            return FrameIndex.write(image, frameHashes, FrameIndex.getKey(plan, composite, pngSettings),
+                                    (File) target, pngSettings, plan, metrics);
+        }
+
+        if (pngSettings == null) {
+            return target instanceof File
+                    ? Main.writeImage(image, (File) target)
+                    : Main.writeImage(image, (OutputStream) target);
+        }
+
+        try {
+            return Main.writeImage(image, target instanceof File
+                    ? new BufferedOutputStream(new FileOutputStream((File) target))
+                    : (OutputStream) target, pngSettings);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether the stitched texture is written to a file incrementally, see {@link FrameIndex}
+     */
+    private boolean isIncremental() {
+        return pngSettings != null && pngSettings.incremental && output != null && !keepImage;
+    }
+
+    /**
+     * Writes the animation settings next to the written texture & stores it in the cache
+     *
+     * @return A description of the problem, or null if the settings were written
+     */
+    private String store() {
+        if (animation != null && !animation.write(output))
+            return "Couldn't write animation settings";
+
+        if (cache != null) cache.store(key, output);
+        return null;
+    }
+
+    /**
+     * Gives the decoded textures back to the pool of the thread which decoded them
+     */
+    private void releaseInputs() {
+        ImageAccess.release(regularImage, inputPool);
+        ImageAccess.release(ctmImage, inputPool);
+        if (compositor != null) compositor.release();
+
+        regularImage = ctmImage = null;
+        compositor = null;
+    }
+
+    /**
+     * @param target Either the output file, or the stream the png is kept in
+     */
+    private boolean encode(BufferedImage regular, BufferedImage ctm, int frameCount, CopyPlan plan,
+                           Compositor compositor, Object target) {
+        if (pngSettings != null) {
+            //Stitching & encoding alternate frame by frame, so the streaming writer times both itself
+            return target instanceof File
+                    ? Main.streamImage(regular, ctm, frameCount, (File) target, pngSettings, plan, compositor, metrics)
+                    : Main.streamImage(regular, ctm, frameCount, (OutputStream) target, pngSettings, plan,
+                                       compositor, metrics);
+        }
+
+        long start = System.nanoTime();
+        BufferedImage out = Main.stitch(regular, ctm, frameCount, plan, compositor);
+        metrics.stitchNanos = System.nanoTime() - start;
+        metrics.buffer((long) out.getWidth() * out.getHeight());
+
+        start = System.nanoTime();
+        boolean written = target instanceof File
+                ? Main.writeImage(out, (File) target)
+                : Main.writeImage(out, (OutputStream) target);
+        metrics.encodeNanos = System.nanoTime() - start;
+
+        ImageAccess.release(out);
+        return written;
+    }
+
+    /**
+     * @return The file the stitched texture is written to, or null if it's kept in memory
+     */
+    File getOutput() {
+        return output;
+    }
+
+    /**
+     * @return The regular texture
+     */
+    File getRegular() {
+        return regular;
+    }
+
+    /**
+     * @return The ctm texture, or null if none is used
+     */
+    File getCtm() {
+        return ctm;
+    }
+
+    /**
+     * @return The stitched texture, if the job keeps it & ran successfully
+     * @see #keepImage()
+     */
+    BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * @return The amount of frames stacked in {@link #getImage()}
+     */
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return A description of the problem of the last run, or null if it stitched the texture
+     */
+    String getError() {
+        return metrics.error;
+    }
+
+    /**
+     * @return The stitched png, if the job has no output file & ran successfully
+     */
+    byte[] getPng() {
+        return png;
+    }
+
+    /**
+     * @return How long the last run took
+     */
+    long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return Where the last run spent its time & memory, or null if the job hasn't run yet
+     */
+    JobMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Whether the last run copied the stitched texture from the cache
+     */
+    boolean isCached() {
+        return cached;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,149 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The operations of {@link PixelOps}, working on as many pixels at once as the cpu's vector registers hold.
+ * Pixels left over at the end of a range go through the scalar loops, so results are the same either way.
+ * Only loaded when the jdk.incubator.vector module is available
+ */
+final class VectorPixelOps {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    //As wide as INTS, so a vector of channels converts to floats lane for lane
+    private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class, INTS.vectorShape());
+
+    //Pixels blended per chunk, so the weights & mixed pixels of a chunk stay in the cpu's cache between loops
+    private static final int CHUNK = 1024;
+    private static final ThreadLocal<float[][]> WEIGHTS = ThreadLocal.withInitial(() -> new float[4][CHUNK]);
+    private static final ThreadLocal<int[]> MIXED = ThreadLocal.withInitial(() -> new int[CHUNK]);
+
+    private VectorPixelOps() {}
+
+    static void multiply(int[] pixels, int offset, int length, int tint) {
+        int tr = (tint >>> 16) & 0xFF, tg = (tint >>> 8) & 0xFF, tb = tint & 0xFF;
+
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector p = IntVector.fromArray(INTS, pixels, offset + i);
+
+            IntVector r = div255(channel(p, 16).mul(tr));
+            IntVector g = div255(channel(p, 8).mul(tg));
+            IntVector b = div255(channel(p, 0).mul(tb));
+
+            p.and(0xFF000000).or(r.lanewise(VectorOperators.LSHL, 16)).or(g.lanewise(VectorOperators.LSHL, 8)).or(b)
+             .intoArray(pixels, offset + i);
+        }
+        PixelOps.multiplyScalar(pixels, offset + i, length - i, tint);
+    }
+
+    static void over(int[] dst, int dstOffset, int[] src, int srcOffset, int length) {
+        float[][] weights = WEIGHTS.get();
+        int vectorLength = INTS.loopBound(length);
+
+        //Done in chunks over small loops, as the JIT can't keep every vector of one big loop body in registers
+        for (int start = 0; start < vectorLength; start += CHUNK) {
+            int end = Math.min(start + CHUNK, vectorLength);
+            computeWeights(dst, dstOffset + start, src, srcOffset + start, end - start, weights);
+            mixChannels(dst, dstOffset + start, src, srcOffset + start, end - start, weights);
+        }
+        PixelOps.overScalar(dst, dstOffset + vectorLength, src, srcOffset + vectorLength, length - vectorLength);
+    }
+
+    /**
+     * Computes the weights of the source & destination pixels & the alpha they add up to,
+     * with the same operations in the same order as {@link PixelOps#overScalar}
+     */
+    private static void computeWeights(int[] dst, int dstOffset, int[] src, int srcOffset, int length,
+                                       float[][] weights) {
+        IntVector max = IntVector.broadcast(INTS, 255);
+        FloatVector max255 = FloatVector.broadcast(FLOATS, 255f), one = FloatVector.broadcast(FLOATS, 1f);
+        FloatVector zero = FloatVector.zero(FLOATS);
+
+        for (int i = 0; i < length; i += INTS.length()) {
+            IntVector sa = IntVector.fromArray(INTS, src, srcOffset + i).lanewise(VectorOperators.LSHR, 24);
+            IntVector da = IntVector.fromArray(INTS, dst, dstOffset + i).lanewise(VectorOperators.LSHR, 24);
+
+            FloatVector srcWeight = toFloats(sa);
+            FloatVector dstWeight = toFloats(da.mul(max.sub(sa))).div(max255);
+            FloatVector alpha = srcWeight.add(dstWeight);
+
+            srcWeight.intoArray(weights[0], i);
+            dstWeight.intoArray(weights[1], i);
+            alpha.intoArray(weights[2], i);
+            one.div(alpha).blend(zero, alpha.eq(zero)).intoArray(weights[3], i);
+        }
+    }
+
+    /**
+     * Mixes the channels of the source & destination pixels by their weights, one channel per loop
+     */
+    private static void mixChannels(int[] dst, int dstOffset, int[] src, int srcOffset, int length,
+                                    float[][] weights) {
+        FloatVector mantissa = FloatVector.broadcast(FLOATS, 0x1p23f);
+        int[] mixed = MIXED.get();
+
+        for (int i = 0; i < length; i += INTS.length())
+            round(FloatVector.fromArray(FLOATS, weights[2], i), mantissa).lanewise(VectorOperators.LSHL, 24)
+                    .intoArray(mixed, i);
+
+        for (int shift = 0; shift < 24; shift += 8) {
+            for (int i = 0; i < length; i += INTS.length()) {
+                IntVector s = channel(IntVector.fromArray(INTS, src, srcOffset + i), shift);
+                IntVector d = channel(IntVector.fromArray(INTS, dst, dstOffset + i), shift);
+                FloatVector c = toFloats(s).mul(FloatVector.fromArray(FLOATS, weights[0], i))
+                        .add(toFloats(d).mul(FloatVector.fromArray(FLOATS, weights[1], i)))
+                        .mul(FloatVector.fromArray(FLOATS, weights[3], i));
+                IntVector.fromArray(INTS, mixed, i).or(round(c, mantissa).lanewise(VectorOperators.LSHL, shift))
+                        .intoArray(mixed, i);
+            }
+        }
+        System.arraycopy(mixed, 0, dst, dstOffset, length);
+    }
+
+    static void overPremultiplied(int[] dst, int dstOffset, int[] src, int srcOffset, int length) {
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector s = IntVector.fromArray(INTS, src, srcOffset + i);
+            IntVector d = IntVector.fromArray(INTS, dst, dstOffset + i);
+            IntVector inverse = s.lanewise(VectorOperators.LSHR, 24).neg().add(255);
+
+            IntVector a = channel(s, 24).add(div255(channel(d, 24).mul(inverse))).min(255);
+            IntVector r = channel(s, 16).add(div255(channel(d, 16).mul(inverse))).min(255);
+            IntVector g = channel(s, 8).add(div255(channel(d, 8).mul(inverse))).min(255);
+            IntVector b = channel(s, 0).add(div255(channel(d, 0).mul(inverse))).min(255);
+
+            a.lanewise(VectorOperators.LSHL, 24).or(r.lanewise(VectorOperators.LSHL, 16))
+             .or(g.lanewise(VectorOperators.LSHL, 8)).or(b)
+             .intoArray(dst, dstOffset + i);
+        }
+        PixelOps.overPremultipliedScalar(dst, dstOffset + i, src, srcOffset + i, length - i);
+    }
+
+    private static IntVector channel(IntVector pixels, int shift) {
+        return pixels.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+    }
+
+    /**
+     * @see PixelOps#div255(int)
+     */
+    private static IntVector div255(IntVector x) {
+        x = x.add(128);
+        return x.add(x.lanewise(VectorOperators.LSHR, 8)).lanewise(VectorOperators.LSHR, 8);
+    }
+
+    private static FloatVector toFloats(IntVector v) {
+        return (FloatVector) v.convertShape(VectorOperators.I2F, FLOATS, 0);
+    }
+
+    /**
+     * @see PixelOps#round(float)
+     */
+    private static IntVector round(FloatVector v, FloatVector mantissa) {
+        //Float to int conversions aren't compiled to vector instructions on every JDK, reinterpreting always is
+        return v.add(mantissa).reinterpretAsInts().and(0x7FFFFF);
+    }
+}
@@ -0,0 +1,202 @@
+package com.Noobfortress.CTM_Stitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches the inputs of stitched textures & re-stitches a texture as soon as one of its inputs changes.
+ * Only textures whose regular, ctm or .mcmeta file changed in content are stitched again, so saving a file
+ * without changing it doesn't cause any work
+ */
+final class Watcher {
+
+    /**
+     * Editors often write a file in several steps. Changes are collected until none came in for this long
+     */
+    private static final long DEBOUNCE_MS = 100;
+
+    private final BatchStitcher stitcher;
+    private final File root;
+    private List<TextureJob> jobs;
+
+    private final Map<Path, String> hashes = new HashMap<>();
+    private final Set<Path> watchedDirs = new HashSet<>();
+
+    /**
+     * @param stitcher The stitcher the textures are stitched with
+     * @param jobs The textures to watch
+     * @param root The directory the textures were found in, which is searched again for new textures whenever
+     *             a png is added. If null, only the given textures are watched
+     */
+    Watcher(BatchStitcher stitcher, List<TextureJob> jobs, File root) {
+        this.stitcher = stitcher;
+        this.jobs = jobs;
+        this.root = root;
+    }
+
+    /**
+     * Watches until the program is stopped
+     */
+    void run() {
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            for (TextureJob job : jobs) {
+                for (File input : job.getInputs())
+                    hashes.put(key(input), Hashes.hash(key(input)));
+            }
+            registerDirs(service);
+
+            System.out.println("Watching " + jobs.size() + " texture(s) for changes. Press Ctrl+C to stop");
+
+            //Changes which couldn't be handled are kept, so they're tried again along with the next ones
+            Set<Path> changed = new HashSet<>();
+            while (true) {
+                boolean overflow = collect(service.take(), changed);
+
+                //Debounce: keep collecting until the files stop changing
+                WatchKey key;
+                while ((key = service.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS)) != null)
+                    overflow |= collect(key, changed);
+
+                if (overflow) changed.addAll(hashes.keySet());
+
+                //An editor may still hold a file, or a directory may be gone before it's registered
+                try {
+                    if (root != null && needsRescan(changed)) {
+                        List<TextureJob> found = stitcher.findJobs();
+                        if (found != null) jobs = found;
+                        registerDirs(service);
+                    }
+
+                    List<TextureJob> affected = findAffected(changed);
+                    changed.clear();
+                    if (!affected.isEmpty()) stitcher.stitchAll(affected);
+                } catch (IOException | UncheckedIOException e) {
+                    System.out.println("Couldn't check the changed files, trying again on the next change: " + e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            System.out.println("Stopped watching");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Whether events were lost, in which case every input has to be checked
+     */
+    private boolean collect(WatchKey key, Set<Path> changed) {
+        Path dir = (Path) key.watchable();
+        boolean overflow = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) overflow = true;
+            else changed.add(dir.resolve((Path) event.context()).toAbsolutePath().normalize());
+        }
+
+        if (!key.reset()) watchedDirs.remove(dir);
+        return overflow;
+    }
+
+    /**
+     * @return Whether a texture or directory might have been added, which the current jobs don't know of yet
+     */
+    private boolean needsRescan(Set<Path> changed) {
+        for (Path path : changed) {
+            String name = path.getFileName().toString().toLowerCase();
+
+            if (hashes.containsKey(path) || Main.isOutputFile(name, stitcher.getPreview())) continue;
+            if (name.endsWith(".png") || Files.isDirectory(path)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hashes the changed inputs again, keeping the new hashes only if all of them could be hashed
+     *
+     * @return The jobs of which at least one input changed in content, or which are new
+     */
+    private List<TextureJob> findAffected(Set<Path> changed) throws IOException {
+        Set<Path> modified = new HashSet<>();
+        Map<Path, String> updated = new HashMap<>();
+
+        for (TextureJob job : jobs) {
+            for (File input : job.getInputs()) {
+                Path path = key(input);
+
+                //Inputs of new jobs haven't been hashed yet
+                if (!changed.contains(path) && hashes.containsKey(path)) continue;
+                if (Files.isDirectory(path)) continue;
+
+                boolean known = hashes.containsKey(path);
+                String hash = Hashes.hash(path);
+                updated.put(path, hash);
+                if (!known || !Objects.equals(hashes.get(path), hash))
+                    modified.add(path);
+            }
+        }
+        hashes.putAll(updated);
+
+        List<TextureJob> affected = new ArrayList<>();
+        for (TextureJob job : jobs) {
+            for (File input : job.getInputs()) {
+                if (modified.contains(key(input))) {
+                    affected.add(job);
+                    break;
+                }
+            }
+        }
+        return affected;
+    }
+
+    private void registerDirs(WatchService service) throws IOException {
+        Set<Path> dirs = new HashSet<>();
+
+        if (root != null) {
+            try (Stream<Path> walk = Files.walk(root.toPath())) {
+                walk.filter(Files::isDirectory).forEach(dir -> dirs.add(dir.toAbsolutePath().normalize()));
+            }
+        }
+
+        for (TextureJob job : jobs) {
+            for (File input : job.getInputs())
+                dirs.add(key(input).getParent());
+        }
+
+        for (Path dir : dirs) {
+            if (!watchedDirs.add(dir)) continue;
+
+            try {
+                dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            } catch (NoSuchFileException e) {
+                watchedDirs.remove(dir); //Deleted since it was found, which doesn't stop the others being watched
+            }
+        }
+    }
+
+    private static Path key(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+}